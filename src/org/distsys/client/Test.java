@@ -1,10 +1,9 @@
 package org.distsys.client;
 
+import org.distsys.common.MessageSocket;
 import org.distsys.common.messages.Message;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.rmi.RemoteException;
 import java.util.Map;
@@ -18,18 +17,13 @@ public class Test {
 
     public static void main(String[] args) {
         try {
-            Socket matchMakingSocket = new Socket(mmServer, 44444);
-            ObjectInputStream mmIn = new ObjectInputStream(matchMakingSocket.getInputStream());
-            Map<String, String> servers = (Map<String, String>) mmIn.readObject();
+            MessageSocket matchMakingSocket = new MessageSocket(new Socket(mmServer, 44444));
+            Map<String, String> servers = (Map<String, String>) matchMakingSocket.readObject();
             matchMakingSocket.close();
             if (servers == null) throw new RemoteException();
 
-            Socket masterSocket = new Socket(servers.get("master"), 33333);
-            ObjectOutputStream out = new ObjectOutputStream(masterSocket.getOutputStream());
-            Message message = new Message();
-            message.put("test", "test");
-            out.writeObject(message);
-            out.flush();
+            MessageSocket masterSocket = new MessageSocket(new Socket(servers.get("master"), 33333));
+            masterSocket.writeMessage(Message.getType(Message.newId(0, 0), 0, 0, 0));
 
             masterSocket.close();
             matchMakingSocket.close();
@@ -0,0 +1,102 @@
+package org.distsys.common;
+
+import org.distsys.common.messages.Message;
+import org.distsys.common.messages.MessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares two ways of passing a commit on to many units: encoding
+ * every message for every unit and queueing it on its own, and
+ * encoding the messages of the commit once and queueing the same
+ * bytes on every connection, as GameServer does. Only the encoding
+ * and queueing is timed. The queues are emptied into a write buffer
+ * after every commit, the way the writer of a connection does, but
+ * that is not counted.
+ * <ul>
+ * <li>das.benchmark.units: the numbers of units to compare, separated by commas
+ * (default 10,100,1000,10000).</li>
+ * <li>das.benchmark.messages: the number of messages in a commit (default 20).</li>
+ * <li>das.benchmark.commits: how many commits are passed on per number of units,
+ * the average is printed (default 200).</li>
+ * </ul>
+ */
+public class BroadcastBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int messages = Integer.getInteger("das.benchmark.messages", 20);
+        int commits = Integer.getInteger("das.benchmark.commits", 200);
+
+        List<Message> commit = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++)
+            commit.add(Message.moveUnit(Message.newId(i + 1, i), i, i + 1));
+
+        for (String count : System.getProperty("das.benchmark.units", "10,100,1000,10000").split(",")) {
+            int units = Integer.parseInt(count.trim());
+            List<BenchmarkConnection> connections = new ArrayList<>(units);
+            for (int i = 0; i < units; i++)
+                connections.add(new BenchmarkConnection());
+
+            long perUnit = 0;
+            long once = 0;
+            // The first half of the commits warms up
+            for (int round = -commits; round < commits; round++) {
+                long start = System.nanoTime();
+                for (BenchmarkConnection connection : connections)
+                    for (Message message : commit)
+                        connection.send(message);
+                long encodedPerUnit = System.nanoTime();
+                drain(connections);
+
+                long encodeStart = System.nanoTime();
+                ByteBuffer frames = MessageCodec.encodeFrames(commit);
+                for (BenchmarkConnection connection : connections)
+                    connection.send(frames);
+                long encodedOnce = System.nanoTime();
+                drain(connections);
+
+                if (round < 0)
+                    continue;
+                perUnit += encodedPerUnit - start;
+                once += encodedOnce - encodeStart;
+            }
+            System.out.printf("%6d units, %d messages: encode per unit %.1fus, encode once %.1fus per commit%n",
+                    units, messages, perUnit / 1e3 / commits, once / 1e3 / commits);
+        }
+    }
+
+    private static void drain(List<BenchmarkConnection> connections) {
+        for (BenchmarkConnection connection : connections)
+            connection.drain();
+    }
+
+    /**
+     * A connection that is written by hand rather than by a writer thread.
+     */
+    private static class BenchmarkConnection extends QueuedConnection {
+        /* Shared by all connections, like the buffer of a selector thread */
+        private static final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        private BenchmarkConnection() {
+            super(null);
+        }
+
+        private void drain() {
+            while (!isEmpty()) {
+                buffer.clear();
+                drainTo(buffer);
+            }
+        }
+
+        @Override
+        protected void schedule() {
+        }
+
+        @Override
+        protected void closeChannel() {
+        }
+    }
+}
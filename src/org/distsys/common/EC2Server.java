@@ -17,7 +17,7 @@ import java.util.concurrent.Executors;
 
 public abstract class EC2Server extends UnicastRemoteObject {
 
-	protected static String hostname;
+	protected String hostname;
 
 	protected ExecutorService pool;
 
@@ -30,6 +30,24 @@ public abstract class EC2Server extends UnicastRemoteObject {
 		System.setProperty("java.rmi.server.hostname", hostname);
 		hostname += "/server";
 
+		createPool();
+	}
+
+	/**
+	 * Create a server that is only reached within this JVM through
+	 * an {@link InMemoryTransport}, so it is not exported over RMI.
+	 *
+	 * @param host the name other servers and units know it by.
+	 */
+	protected EC2Server(String host) throws Exception {
+		super(0);
+		unexportObject(this, true);
+		hostname = host + "/server";
+
+		createPool();
+	}
+
+	private void createPool() {
 		pool = Executors.newCachedThreadPool();
 
 		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -37,6 +55,13 @@ public abstract class EC2Server extends UnicastRemoteObject {
 		}));
 	}
 
+	/**
+	 * @return the host this server runs on.
+	 */
+	public String getHost() {
+		return hostname.substring(0, hostname.length() - "/server".length());
+	}
+
 	protected static String getInstancePublicDnsName() throws Exception {
 		final String accessKey = System.getenv("AWS_ACCESS_KEY");
 		final String secretKey = System.getenv("AWS_SECRET_KEY");
@@ -1,6 +1,6 @@
 package org.distsys.common;
 
-import org.distsys.common.das.BattleField;
+import org.distsys.common.das.StateDelta;
 import org.distsys.common.messages.Message;
 
 import java.rmi.RemoteException;
@@ -26,7 +26,32 @@ public interface IGameServer extends IServer {
 
     void commit(Message message) throws RemoteException;
 
-    void commit(BattleField battleField) throws RemoteException;
+    /**
+     * Apply the changes of a commit to the local battlefield.
+     *
+     * @return the version of the local battlefield afterwards, which
+     * is lower than the version of the delta if it could not be applied.
+     */
+    long commit(StateDelta delta) throws RemoteException;
 
     void abort(Message message) throws RemoteException;
+
+    //Election methods:
+
+    /**
+     * Ask for the vote of this server to become the master of a term.
+     *
+     * @param lastTerm the term of the last commit of the candidate.
+     * @param version  the version of the battlefield of the candidate.
+     * @return whether the vote was granted.
+     */
+    boolean requestLeaderVote(long term, String candidate, long lastTerm, long version) throws RemoteException;
+
+    /**
+     * Tell this server the master of a term is still there.
+     *
+     * @param servers all servers of the game.
+     * @return the term of this server.
+     */
+    long heartbeat(long term, String master, String[] servers) throws RemoteException;
 }
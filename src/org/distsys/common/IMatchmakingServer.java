@@ -6,4 +6,10 @@ import java.util.Map;
 public interface IMatchmakingServer extends IServer {
     String register(String hostname) throws RemoteException;
     Map<String, String> getServers() throws RemoteException;
+
+    /**
+     * Tell the matchmaking server the game servers elected a new master,
+     * so it sends new clients there.
+     */
+    void leaderElected(String host, long term) throws RemoteException;
 }
@@ -0,0 +1,234 @@
+package org.distsys.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connects servers and units that run in the same JVM, without
+ * any network. Message sockets are pairs of in-memory pipes and
+ * servers are looked up in a map and called directly. Messages
+ * are still encoded, so every side works on its own copy just
+ * like over TCP.
+ */
+public class InMemoryTransport extends Transport {
+
+    private final Map<String, MemoryListener> listeners = new ConcurrentHashMap<>();
+    private final Map<String, Remote> servers = new ConcurrentHashMap<>();
+
+    @Override
+    public MessageSocket connect(String host, int port) throws IOException {
+        MemoryListener listener = listeners.get(host + ":" + port);
+        if (listener == null)
+            throw new ConnectException("Nothing listens on " + host + ":" + port);
+
+        Pipe up = new Pipe(), down = new Pipe();
+        Closeable connection = () -> {
+            up.close();
+            down.close();
+        };
+        listener.pending.add(new Pipe[]{up, down});
+        return new MessageSocket(down.input, up.output, connection);
+    }
+
+    @Override
+    public Listener listen(String host, int port) throws IOException {
+        String address = host + ":" + port;
+        MemoryListener listener = new MemoryListener(address);
+        if (listeners.putIfAbsent(address, listener) != null)
+            throw new BindException(address + " is already in use");
+        return listener;
+    }
+
+    @Override
+    public Remote lookup(String name) throws NotBoundException {
+        Remote server = servers.get(name);
+        if (server == null)
+            throw new NotBoundException(name);
+        return server;
+    }
+
+    @Override
+    public void bind(String name, Remote server) {
+        servers.put(name, server);
+    }
+
+    private class MemoryListener implements Listener {
+        private final String address;
+        private final BlockingQueue<Pipe[]> pending = new LinkedBlockingQueue<>();
+
+        private MemoryListener(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public MessageSocket accept() throws IOException {
+            Pipe[] pipes;
+            try {
+                pipes = pending.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while accepting on " + address);
+            }
+            if (pipes.length == 0)
+                throw new IOException(address + " is closed");
+
+            Pipe up = pipes[0], down = pipes[1];
+            return new MessageSocket(up.input, down.output, () -> {
+                up.close();
+                down.close();
+            });
+        }
+
+        @Override
+        public void close() {
+            listeners.remove(address, this);
+            pending.add(new Pipe[0]);
+        }
+    }
+
+    /**
+     * A bounded byte buffer that one side writes to and the other
+     * reads from. It starts small and grows up to a limit, after
+     * which writers wait for the reader. Once closed, the reader
+     * still gets what was written before reaching the end.
+     */
+    private static class Pipe {
+        private static final int INITIAL_SIZE = 1024;
+        private static final int MAX_SIZE = 1024 * 1024;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private byte[] buffer = new byte[INITIAL_SIZE];
+        private int head;
+        private int count;
+        private boolean closed;
+
+        private final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                lock.lock();
+                try {
+                    return count;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        private final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        private int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            lock.lock();
+            try {
+                while (count == 0) {
+                    if (closed)
+                        return -1;
+                    changed.await();
+                }
+                int n = Math.min(len, Math.min(count, buffer.length - head));
+                System.arraycopy(buffer, head, b, off, n);
+                head = (head + n) % buffer.length;
+                count -= n;
+                changed.signalAll();
+                return n;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            lock.lock();
+            try {
+                while (len > 0) {
+                    if (closed)
+                        throw new IOException("Pipe closed");
+                    if (count == buffer.length) {
+                        if (buffer.length < MAX_SIZE) {
+                            grow();
+                        } else {
+                            changed.await();
+                            continue;
+                        }
+                    }
+                    int tail = (head + count) % buffer.length;
+                    int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+                    System.arraycopy(b, off, buffer, tail, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                    changed.signalAll();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void grow() {
+            byte[] grown = new byte[buffer.length * 2];
+            int first = Math.min(count, buffer.length - head);
+            System.arraycopy(buffer, head, grown, 0, first);
+            System.arraycopy(buffer, 0, grown, first, count - first);
+            buffer = grown;
+            head = 0;
+        }
+
+        private void close() {
+            lock.lock();
+            try {
+                closed = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -1,36 +1,202 @@
 package org.distsys.common;
 
+import org.distsys.common.messages.Message;
+import org.distsys.common.messages.MessageCodec;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * A connection over which messages are sent in their binary form,
+ * see {@link MessageCodec}, and other objects through Java
+ * serialization.
+ * <p>
+ * An object stream remembers every object it wrote, so it can
+ * refer back to it. On a long-lived connection that table would
+ * keep growing, and an object that changed since it was written
+ * would be sent as a reference to its old state. The object stream
+ * is therefore reset after a number of objects were written, or
+ * once the table holds a number of entries, whichever comes first:
+ * <ul>
+ * <li>das.streamResetInterval: objects written between resets (default 100).</li>
+ * <li>das.streamResetHandles: entries of the table that trigger a reset (default 4096).</li>
+ * </ul>
+ * An interval of 1 resets after every object, so every object is
+ * sent in its current state.
+ * <p>
+ * The object streams are only set up when the first object is
+ * written or read, so a connection that only carries messages
+ * holds nothing but frames, see {@link SelectorServer}.
+ */
+public class MessageSocket implements Closeable {
 
-public class MessageSocket {
+    private static final int RESET_INTERVAL = Integer.getInteger("das.streamResetInterval", 100);
+    private static final int RESET_HANDLES = Integer.getInteger("das.streamResetHandles", 4096);
 
-    private Socket socket;
-    private ObjectOutputStream objectOutputStream;
+    private final Closeable connection;
+    private InputStream inputStream;
+    private OutputStream outputStream;
+    private final Object objectLock = new Object();
+    private CountingObjectOutputStream objectOutputStream;
     private ObjectInputStream objectInputStream;
+    private InputStream messageInputStream;
 
     public MessageSocket(Socket socket) {
-        this.socket = socket;
+        this.connection = socket;
         try {
-            objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-            objectInputStream = new ObjectInputStream(socket.getInputStream());
+            inputStream = socket.getInputStream();
+            outputStream = socket.getOutputStream();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public Socket getSocket() {
-        return socket;
+    /**
+     * Wrap a connection that is not a socket, see {@link Transport}.
+     *
+     * @param in         what the other side writes.
+     * @param out        what the other side reads.
+     * @param connection closes both streams.
+     */
+    public MessageSocket(InputStream in, OutputStream out, Closeable connection) {
+        this.connection = connection;
+        this.inputStream = in;
+        this.outputStream = out;
+    }
+
+    /**
+     * Limit how long a read blocks, if the connection supports it.
+     */
+    public void setReadTimeout(int timeout) throws SocketException {
+        if (connection instanceof Socket)
+            ((Socket) connection).setSoTimeout(timeout);
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Send an object through Java serialization, resetting the
+     * stream when the reset policy asks for it. Safe to call from
+     * several threads.
+     */
+    public void writeObject(Object object) throws IOException {
+        synchronized (objectLock) {
+            if (objectOutputStream == null)
+                objectOutputStream = new CountingObjectOutputStream(outputStream);
+            objectOutputStream.writeObject(object);
+            objectOutputStream.objectsSinceReset++;
+            if (objectOutputStream.objectsSinceReset >= RESET_INTERVAL
+                    || objectOutputStream.handles >= RESET_HANDLES)
+                objectOutputStream.resetTable();
+            objectOutputStream.flush();
+        }
+    }
+
+    /**
+     * @return the number of objects the object stream refers back to,
+     * i.e. the size of its handle table leaving out class descriptions.
+     */
+    public int getHandleCount() {
+        synchronized (objectLock) {
+            return objectOutputStream == null ? 0 : objectOutputStream.handles;
+        }
+    }
+
+    /**
+     * @return the number of objects written since the last reset.
+     */
+    public int getObjectsSinceReset() {
+        synchronized (objectLock) {
+            return objectOutputStream == null ? 0 : objectOutputStream.objectsSinceReset;
+        }
+    }
+
+    /**
+     * @return how often the object stream was reset.
+     */
+    public long getResetCount() {
+        synchronized (objectLock) {
+            return objectOutputStream == null ? 0 : objectOutputStream.resets;
+        }
+    }
+
+    /**
+     * Block until an object sent by {@link #writeObject(Object)} arrives.
+     */
+    public Object readObject() throws IOException, ClassNotFoundException {
+        synchronized (objectLock) {
+            if (objectInputStream == null)
+                objectInputStream = new ObjectInputStream(inputStream);
+        }
+        return objectInputStream.readObject();
+    }
+
+    /**
+     * Send a message in its binary form, see {@link MessageCodec}.
+     * Safe to call from several threads.
+     */
+    public void writeMessage(Message message) throws IOException {
+        synchronized (outputStream) {
+            MessageCodec.writeFrame(message, outputStream);
+            outputStream.flush();
+        }
     }
 
-    public ObjectOutputStream getObjectOutputStream() {
-        return objectOutputStream;
+    /**
+     * Block until a message arrives. Only one thread should read
+     * messages, and nobody should read the raw input stream then.
+     */
+    public Message readMessage() throws IOException {
+        if (messageInputStream == null)
+            messageInputStream = new BufferedInputStream(inputStream);
+        return MessageCodec.readFrame(messageInputStream);
     }
 
-    public ObjectInputStream getObjectInputStream() {
-        return objectInputStream;
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+
+    /**
+     * An object stream that counts the objects entering its handle
+     * table. Objects only pass {@link #replaceObject(Object)} the
+     * first time they are written, later writes refer back to them.
+     */
+    private static class CountingObjectOutputStream extends ObjectOutputStream {
+        private int handles;
+        private int objectsSinceReset;
+        private long resets;
+
+        private CountingObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object object) {
+            handles++;
+            return object;
+        }
+
+        private void resetTable() throws IOException {
+            reset();
+            handles = 0;
+            objectsSinceReset = 0;
+            resets++;
+        }
     }
 
 }
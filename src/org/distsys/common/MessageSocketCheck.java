@@ -0,0 +1,102 @@
+package org.distsys.common;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the reset policy of {@link MessageSocket} over a long run.
+ * Objects of varying size are written through a pipe, well past both
+ * das.streamResetInterval and das.streamResetHandles, while the other
+ * end reads them back. After every write the handle count, the objects
+ * since the last reset and the number of resets must match what the
+ * policy predicts, and must never reach either limit. The other end
+ * must read every object as it was written.
+ * <ul>
+ * <li>das.check.objects: the number of objects written (default 200000).</li>
+ * <li>das.streamResetInterval, das.streamResetHandles: see {@link MessageSocket}.</li>
+ * </ul>
+ * Every object is an array of fresh strings, so it adds one entry to
+ * the handle table plus one per string. Now and then an array is
+ * larger than das.streamResetHandles on its own.
+ * <p>
+ * Prints PASSED or FAILED and exits with status 1 on failure.
+ */
+public class MessageSocketCheck {
+
+    private static final int RESET_INTERVAL = Integer.getInteger("das.streamResetInterval", 100);
+    private static final int RESET_HANDLES = Integer.getInteger("das.streamResetHandles", 4096);
+
+    public static void main(String[] args) throws Exception {
+        int objects = Integer.getInteger("das.check.objects", 200000);
+
+        PipedOutputStream out = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(out, 64 * 1024);
+        MessageSocket writer = new MessageSocket(new PipedInputStream(), out, out);
+        MessageSocket reader = new MessageSocket(in, new PipedOutputStream(), in);
+
+        AtomicReference<String> readFailure = new AtomicReference<>();
+        Thread readerThread = new Thread(() -> {
+            try {
+                for (int i = 0; i < objects; i++) {
+                    String[] strings = (String[]) reader.readObject();
+                    if (strings.length != size(i) || !strings[strings.length - 1].equals(String.valueOf(i))) {
+                        readFailure.set("object " + i + " was read as " + strings.length + " strings");
+                        return;
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                readFailure.set(e.toString());
+            }
+        }, "reader");
+        readerThread.start();
+
+        int handles = 0;
+        int sinceReset = 0;
+        long resets = 0;
+        String failure = null;
+        for (int i = 0; i < objects && failure == null; i++) {
+            String[] strings = new String[size(i)];
+            for (int j = 0; j < strings.length; j++)
+                strings[j] = String.valueOf(j == strings.length - 1 ? i : j);
+            writer.writeObject(strings);
+
+            handles += strings.length + 1;
+            sinceReset++;
+            if (sinceReset >= RESET_INTERVAL || handles >= RESET_HANDLES) {
+                handles = 0;
+                sinceReset = 0;
+                resets++;
+            }
+            if (writer.getHandleCount() != handles || writer.getObjectsSinceReset() != sinceReset
+                    || writer.getResetCount() != resets)
+                failure = String.format("after object %d: %d handles, %d objects since reset and %d resets, expected %d, %d and %d",
+                        i, writer.getHandleCount(), writer.getObjectsSinceReset(), writer.getResetCount(),
+                        handles, sinceReset, resets);
+            else if (handles >= RESET_HANDLES || sinceReset >= RESET_INTERVAL)
+                failure = "after object " + i + ": a limit was reached without a reset";
+        }
+        readerThread.join(10000);
+        if (failure == null && readerThread.isAlive())
+            failure = "the reader did not read every object";
+        if (failure == null)
+            failure = readFailure.get();
+
+        System.out.printf("%s: %d objects, %d resets, interval %d, handle limit %d%n",
+                failure == null ? "PASSED" : "FAILED", objects, writer.getResetCount(), RESET_INTERVAL, RESET_HANDLES);
+        if (failure != null)
+            System.out.println(failure);
+        writer.close();
+        reader.close();
+        System.exit(failure == null ? 0 : 1);
+    }
+
+    /**
+     * @return the number of strings in an object, mostly a few, and
+     * every thousandth object more than the handle limit.
+     */
+    private static int size(int i) {
+        return i % 1000 == 550 ? RESET_HANDLES + 1 : 1 + i % 37;
+    }
+}
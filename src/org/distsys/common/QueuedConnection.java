@@ -0,0 +1,187 @@
+package org.distsys.common;
+
+import org.distsys.common.messages.Message;
+import org.distsys.common.messages.MessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A served connection with a bounded queue of frames waiting to be
+ * written. Sending only queues the frames, a writer of the subclass
+ * takes out everything that is queued and writes it in one go.
+ * Frames are queued as they are given, so a buffer of frames that
+ * is broadcast is shared by all connections rather than copied.
+ * <p>
+ * When a unit does not keep up and the queue is full, what happens
+ * depends on das.outboundPolicy, see {@link Transport.Overflow}. The
+ * limit is set by das.outboundLimit (default 1024 sends).
+ */
+abstract class QueuedConnection implements Transport.Connection {
+
+    static final int LIMIT = Integer.getInteger("das.outboundLimit", 1024);
+    static final Transport.Overflow POLICY = Transport.Overflow.valueOf(
+            System.getProperty("das.outboundPolicy", Transport.Overflow.SNAPSHOT.name()).toUpperCase());
+
+    protected final Transport.Handler handler;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile Object attachment;
+    /* What is left of the frames the writer is busy with, only touched by the writer */
+    private ByteBuffer current;
+
+    private volatile int maxDepth;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    protected QueuedConnection(Transport.Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        send(MessageCodec.encodeFrames(Collections.singletonList(message)));
+    }
+
+    @Override
+    public void send(ByteBuffer frames) throws IOException {
+        if (closed.get())
+            throw new ClosedChannelException();
+        if (depth.get() >= LIMIT && !overflow())
+            return;
+        outbound.add(frames.duplicate());
+        int queued = depth.incrementAndGet();
+        if (queued > maxDepth)
+            maxDepth = queued;
+        schedule();
+    }
+
+    /**
+     * Apply the overflow policy to a full queue.
+     *
+     * @return whether the frames that did not fit should still be queued.
+     */
+    private boolean overflow() {
+        overflows.incrementAndGet();
+        switch (POLICY) {
+            case DROP_OLDEST:
+                if (poll() != null)
+                    dropped.incrementAndGet();
+                return true;
+            case SNAPSHOT:
+                // The snapshot is taken after these frames were committed, so it covers them too
+                dropped.addAndGet(1 + clear());
+                handler.overflowed(this);
+                return false;
+            default:
+                dropped.incrementAndGet();
+                close();
+                return false;
+        }
+    }
+
+    /**
+     * Make sure the writer gets to the queue. Called after every
+     * send that is queued, from any thread.
+     */
+    protected abstract void schedule();
+
+    /**
+     * Close the underlying channel or socket.
+     */
+    protected abstract void closeChannel();
+
+    /**
+     * Move queued frames into a buffer, until it is full or nothing
+     * is queued anymore. When the frames of a send do not fit, the
+     * rest is moved on the next call. Only called by the writer.
+     */
+    protected void drainTo(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (current == null && (current = poll()) == null)
+                return;
+            if (current.remaining() > buffer.remaining()) {
+                int limit = current.limit();
+                current.limit(current.position() + buffer.remaining());
+                buffer.put(current);
+                current.limit(limit);
+                return;
+            }
+            buffer.put(current);
+            current = null;
+        }
+    }
+
+    /**
+     * @return whether the writer has nothing left to write. Only
+     * called by the writer.
+     */
+    protected boolean isEmpty() {
+        return current == null && outbound.isEmpty();
+    }
+
+    private ByteBuffer poll() {
+        ByteBuffer frames = outbound.poll();
+        if (frames != null)
+            depth.decrementAndGet();
+        return frames;
+    }
+
+    private int clear() {
+        int cleared = 0;
+        while (poll() != null)
+            cleared++;
+        return cleared;
+    }
+
+    protected boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    @Override
+    public void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    public Object attachment() {
+        return attachment;
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        closeChannel();
+        clear();
+        handler.disconnected(this);
+    }
+}
@@ -0,0 +1,309 @@
+package org.distsys.common;
+
+import org.distsys.common.messages.Message;
+import org.distsys.common.messages.MessageCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves the connections of a TCP port with a fixed number of
+ * threads, no matter how many units connect. Every thread runs a
+ * selector over its share of the connections, and reads and
+ * writes them without blocking.
+ * <p>
+ * Connections carry frames, see {@link MessageCodec}. The frames
+ * a read ends in the middle of are kept until the rest arrives.
+ * Messages to send are queued, see {@link QueuedConnection}, and
+ * written together once the thread of the connection gets to it.
+ * What the socket does not take at once is written when it is
+ * ready again.
+ * <p>
+ * A connection is served by the same thread all its life, so its
+ * messages are handled in the order they were sent.
+ */
+class SelectorServer implements Closeable {
+
+    /* What a thread reads or writes in one go, shared by its connections */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BACKLOG = 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final Transport.Handler handler;
+    private final EventLoop[] loops;
+    /* Only touched by the first thread, which accepts the connections */
+    private int nextLoop;
+
+    /**
+     * @param port    the port to listen on.
+     * @param handler gets told what happens on the connections.
+     * @param threads the number of threads serving the connections.
+     */
+    SelectorServer(int port, Transport.Handler handler, int threads) throws IOException {
+        this.handler = handler;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), BACKLOG);
+        serverChannel.configureBlocking(false);
+
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++)
+            loops[i] = new EventLoop("io-" + port + "-" + i);
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : loops)
+            loop.thread.start();
+    }
+
+    /**
+     * Stop accepting and close every connection.
+     */
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (EventLoop loop : loops)
+            loop.execute(loop::shutdown);
+    }
+
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+                if (channel == null)
+                    return;
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                // Most likely out of file descriptors, try again on the next select
+                e.printStackTrace();
+                return;
+            }
+
+            EventLoop loop = loops[nextLoop++ % loops.length];
+            NioConnection connection = new NioConnection(channel, loop);
+            loop.execute(connection::register);
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Run a task on the thread of this loop.
+         */
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                } catch (ClosedSelectorException e) {
+                    break;
+                }
+
+                for (Runnable task; (task = tasks.poll()) != null; )
+                    task.run();
+                if (!selector.isOpen())
+                    break;
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                    } catch (CancelledKeyException e) {
+                        if (key.attachment() instanceof NioConnection)
+                            ((NioConnection) key.attachment()).close();
+                    }
+                }
+            }
+        }
+
+        private void shutdown() {
+            List<SelectionKey> keys = new ArrayList<>(selector.keys());
+            for (SelectionKey key : keys) {
+                if (key.attachment() instanceof NioConnection)
+                    ((NioConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private class NioConnection extends QueuedConnection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private SelectionKey key;
+        /* Whether a flush is queued or waiting for the socket, so a send does not queue another */
+        private final AtomicBoolean flushing = new AtomicBoolean(false);
+
+        /* The start of a frame the last read ended in, and what the socket did not take yet */
+        private ByteBuffer partial;
+        private ByteBuffer unsent;
+
+        private NioConnection(SocketChannel channel, EventLoop loop) {
+            super(SelectorServer.this.handler);
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        private void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException e) {
+                close();
+                return;
+            }
+            handler.connected(this);
+        }
+
+        private void read() {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            if (partial != null) {
+                buffer.put(partial);
+                partial = null;
+            }
+
+            try {
+                if (channel.read(buffer) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            buffer.flip();
+            try {
+                for (Message message; (message = MessageCodec.readFrame(buffer)) != null; )
+                    handler.received(this, message);
+            } catch (RuntimeException e) {
+                // Not a frame, so there is no telling where the next one starts
+                e.printStackTrace();
+                close();
+                return;
+            }
+
+            if (buffer.hasRemaining())
+                partial = copy(buffer);
+        }
+
+        @Override
+        protected void schedule() {
+            if (flushing.compareAndSet(false, true))
+                loop.execute(this::flush);
+        }
+
+        /**
+         * Write the queued frames, as many at once as fit the buffer.
+         * Only runs on the thread of the loop.
+         */
+        private void flush() {
+            if (isClosed())
+                return;
+            ByteBuffer buffer = loop.writeBuffer;
+            while (true) {
+                buffer.clear();
+                if (unsent != null) {
+                    buffer.put(unsent);
+                    unsent = null;
+                }
+                drainTo(buffer);
+                buffer.flip();
+
+                if (!buffer.hasRemaining()) {
+                    flushing.set(false);
+                    // A send may have queued a frame after the poll, without queuing a flush
+                    if (isEmpty() || !flushing.compareAndSet(false, true)) {
+                        interest(SelectionKey.OP_READ);
+                        return;
+                    }
+                    continue;
+                }
+
+                try {
+                    channel.write(buffer);
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                if (buffer.hasRemaining()) {
+                    // The socket is full, go on once it is ready for more
+                    unsent = copy(buffer);
+                    interest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        }
+
+        private void interest(int ops) {
+            try {
+                key.interestOps(ops);
+            } catch (CancelledKeyException e) {
+                close();
+            }
+        }
+
+        @Override
+        protected void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer);
+        copy.flip();
+        return copy;
+    }
+}
@@ -0,0 +1,62 @@
+package org.distsys.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Reaches other processes over TCP sockets and RMI. Ports that
+ * serve units are handled by a {@link SelectorServer}, with
+ * das.ioThreads threads (default one per processor).
+ */
+public class SocketTransport extends Transport {
+
+    private static final int IO_THREADS = Integer.getInteger("das.ioThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    @Override
+    public MessageSocket connect(String host, int port) throws IOException {
+        return new MessageSocket(new Socket(host, port));
+    }
+
+    @Override
+    public Listener listen(String host, int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        return new Listener() {
+            @Override
+            public MessageSocket accept() throws IOException {
+                return new MessageSocket(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Closeable serve(String host, int port, Handler handler) throws IOException {
+        return new SelectorServer(port, handler, IO_THREADS);
+    }
+
+    @Override
+    public Remote lookup(String name) throws RemoteException, NotBoundException, MalformedURLException {
+        return Naming.lookup("rmi://" + name);
+    }
+
+    @Override
+    public void bind(String name, Remote server) throws RemoteException {
+        try {
+            Naming.rebind("rmi://" + name, server);
+        } catch (MalformedURLException e) {
+            throw new RemoteException("Could not bind " + name, e);
+        }
+    }
+}
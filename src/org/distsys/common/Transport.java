@@ -0,0 +1,269 @@
+package org.distsys.common;
+
+import org.distsys.common.messages.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How the processes of the game reach each other: the message
+ * sockets between units and servers, and the lookup of the
+ * remote server objects. By default this goes over TCP and RMI,
+ * see {@link SocketTransport}. A headless simulation swaps in an
+ * {@link InMemoryTransport} to run everything in a single JVM.
+ */
+public abstract class Transport {
+
+    private static volatile Transport transport = new SocketTransport();
+
+    /**
+     * @return the transport used by this process.
+     */
+    public static Transport get() {
+        return transport;
+    }
+
+    /**
+     * Replace the transport. This has to happen before any
+     * server or unit is created.
+     */
+    public static void set(Transport transport) {
+        Transport.transport = transport;
+    }
+
+    /**
+     * Open a message socket to a host.
+     */
+    public abstract MessageSocket connect(String host, int port) throws IOException;
+
+    /**
+     * Start accepting message sockets on a port of this host.
+     */
+    public abstract Listener listen(String host, int port) throws IOException;
+
+    /**
+     * Serve the units that connect to a port of this host, handing
+     * every message they send to a handler. This runs a thread per
+     * connection on top of {@link #listen(String, int)}; transports
+     * that can do better override it.
+     *
+     * @return closes the port and every connection made to it.
+     */
+    public Closeable serve(String host, int port, Handler handler) throws IOException {
+        Listener listener = listen(host, port);
+        Map<Connection, Boolean> connections = new ConcurrentHashMap<>();
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                StreamConnection connection;
+                try {
+                    connection = new StreamConnection(listener.accept(), handler, connections);
+                } catch (IOException e) {
+                    break;
+                }
+                connections.put(connection, Boolean.TRUE);
+                handler.connected(connection);
+                new Thread(connection::readMessages, "connection-" + port + "-reader").start();
+                new Thread(connection::writeMessages, "connection-" + port + "-writer").start();
+            }
+        }, "listener-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        return () -> {
+            listener.close();
+            for (Connection connection : connections.keySet())
+                connection.close();
+        };
+    }
+
+    /**
+     * Look up a server by its name, which is the host followed by "/server".
+     */
+    public abstract Remote lookup(String name) throws RemoteException, NotBoundException, MalformedURLException;
+
+    /**
+     * Make a server available under a name, for {@link #lookup(String)}.
+     */
+    public abstract void bind(String name, Remote server) throws RemoteException;
+
+    /**
+     * The side of a served connection, see {@link #serve(String, int, Handler)}.
+     */
+    public interface Connection extends Closeable {
+        /**
+         * Queue a message to be sent, without waiting for it to be
+         * written. Messages are sent in the order they were queued.
+         */
+        void send(Message message) throws IOException;
+
+        /**
+         * Queue frames that were encoded once to be sent to many
+         * connections, see {@link org.distsys.common.messages.MessageCodec#encodeFrames}.
+         * The buffer itself is left as it is.
+         */
+        void send(ByteBuffer frames) throws IOException;
+
+        /**
+         * @return the number of sends queued and not written yet.
+         */
+        int getQueueDepth();
+
+        /**
+         * @return the largest number of sends that were queued at once.
+         */
+        int getMaxQueueDepth();
+
+        /**
+         * @return the number of sends that were dropped because the queue was full.
+         */
+        long getDropped();
+
+        /**
+         * @return how often the queue was full.
+         */
+        long getOverflows();
+
+        /**
+         * Remember something with this connection, such as who is on
+         * the other side.
+         */
+        void attach(Object attachment);
+
+        Object attachment();
+
+        /**
+         * Close the connection. Does not throw, and can be called
+         * more than once.
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * Gets told what happens on the connections of a port. The calls
+     * for a single connection are made one after the other, in the
+     * order the messages arrived. They may be made on a thread that
+     * serves other connections as well, so they should not block.
+     */
+    public interface Handler {
+        void connected(Connection connection);
+
+        void received(Connection connection, Message message);
+
+        void disconnected(Connection connection);
+
+        /**
+         * The messages queued for a connection were dropped, see
+         * {@link Overflow#SNAPSHOT}. Send what brings the other side
+         * up to date again.
+         */
+        void overflowed(Connection connection);
+    }
+
+    /**
+     * What to do when a connection does not keep up and its queue of
+     * messages to send is full.
+     */
+    public enum Overflow {
+        /**
+         * Drop the oldest message to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop all queued messages and let the handler send a snapshot
+         * of the current state instead.
+         */
+        SNAPSHOT,
+        /**
+         * Close the connection.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * A served connection on top of a message socket, with a thread
+     * reading from it and one writing to it.
+     */
+    private static class StreamConnection extends QueuedConnection {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final MessageSocket socket;
+        private final Map<Connection, Boolean> connections;
+
+        private StreamConnection(MessageSocket socket, Handler handler, Map<Connection, Boolean> connections) {
+            super(handler);
+            this.socket = socket;
+            this.connections = connections;
+        }
+
+        private void readMessages() {
+            try {
+                while (true)
+                    handler.received(this, socket.readMessage());
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Write everything that is queued with a single flush, until
+         * the connection is closed.
+         */
+        private void writeMessages() {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            OutputStream out = socket.getOutputStream();
+            try {
+                while (true) {
+                    synchronized (this) {
+                        while (isEmpty() && !isClosed())
+                            wait();
+                    }
+                    if (isClosed())
+                        return;
+
+                    buffer.clear();
+                    drainTo(buffer);
+                    synchronized (out) {
+                        out.write(buffer.array(), 0, buffer.position());
+                        out.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        @Override
+        protected synchronized void schedule() {
+            notifyAll();
+        }
+
+        @Override
+        protected void closeChannel() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            connections.remove(this);
+            schedule();
+        }
+    }
+
+    /**
+     * Accepts incoming message sockets.
+     */
+    public interface Listener extends Closeable {
+        /**
+         * Block until another process connects.
+         */
+        MessageSocket accept() throws IOException;
+    }
+}
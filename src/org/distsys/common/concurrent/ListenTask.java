@@ -1,124 +1,120 @@
 package org.distsys.common.concurrent;
 
-import org.distsys.common.IGameServer;
-import org.distsys.common.MessageSocket;
-import org.distsys.common.das.BattleField;
+import org.distsys.common.Transport;
+import org.distsys.common.das.MessageRequest;
+import org.distsys.common.das.units.UnitState;
 import org.distsys.common.messages.Message;
-import org.distsys.server.ClientMonitor;
 import org.distsys.server.GameServer;
-import org.distsys.server.ServerMonitor;
+import org.distsys.server.InterestMap;
 
-import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.io.IOException;
+import java.rmi.RemoteException;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
 
-public class ListenTask implements Runnable {
-
-    private ServerSocket serverSocket;
-    private Map<String, MessageSocket> clients;
-    private ExecutorService pool;
-    private IGameServer server;
-
-    public ListenTask(ExecutorService pool, Map<String, MessageSocket> clients, IGameServer server) {
-        this.pool = pool;
+/**
+ * Serves the units on port 33333. A master gives every unit that
+ * connects an id and takes in the messages it sends, keeping the
+ * connection to tell the unit about writes that were aborted. A slave waits
+ * for a unit to tell its id, and from then on passes it the commits
+ * around it, see {@link InterestMap}. Both answer the reads of the
+ * units they serve themselves, see {@link GameServer#read}.
+ * <p>
+ * The port stays open when the server changes role, every message
+ * is handled by the role the server has when it arrives.
+ */
+public class ListenTask implements Runnable, Transport.Handler {
+
+    private final Map<String, Transport.Connection> clients;
+    private final Map<Integer, Transport.Connection> writers;
+    private final InterestMap interest;
+    private final GameServer server;
+
+    public ListenTask(Map<String, Transport.Connection> clients, Map<Integer, Transport.Connection> writers,
+                      InterestMap interest, GameServer server) {
+        this.clients = clients;
+        this.writers = writers;
+        this.interest = interest;
         this.server = server;
+    }
+
+    @Override
+    public void run() {
         try {
-            this.serverSocket = new ServerSocket(33333);
+            Transport.get().serve(server.getHost(), 33333, this);
         } catch (IOException e) {
             e.printStackTrace();
-            return;
+            server.isListening.set(false);
         }
-        this.clients = clients;
     }
 
     @Override
-    public void run() {
-        Socket socket;
-        InputStream in;
-        BufferedReader reader;
-        if (GameServer.isMaster.get()) {
-            while(GameServer.isMaster.get()) {
-                try {
-                    socket = serverSocket.accept();
-                    MessageSocket messageSocket = new MessageSocket(socket);
-
-					Message message = new Message();
-					String id = "D" + BattleField.getBattleField().getNewUnitID();
-					message.put("id", id);
-					pool.execute(new ClientMessageTask(message, messageSocket));
-
-                    pool.execute(new ClientReceiveTask(messageSocket, server));
-                } catch (SocketTimeoutException e) {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e1) {
-                        e1.printStackTrace();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    break;
-                }
-            }
-        } else {
-            while (!GameServer.isMaster.get()) {
-                try {
-                    socket = serverSocket.accept();
-                    socket.setSoTimeout(5000);
-                    MessageSocket messageSocket = new MessageSocket(socket);
-                    in = socket.getInputStream();
-                    reader = new BufferedReader(new InputStreamReader(in));
-
-                    String id = reader.readLine();
-                    clients.put(id, messageSocket);
-                    System.out.println(id + " CONNECTED");
-                    ClientMonitor monitor = new ClientMonitor(id, messageSocket);
-                    monitor.addListener(new ClientListener(monitor));
-                    new Thread(monitor).start();
-                } catch (SocketTimeoutException e) {
-                    System.out.println("timeout");
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e1) {
-                        e1.printStackTrace();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    break;
-                }
-            }
+    public void connected(Transport.Connection connection) {
+        if (!server.isMaster.get())
+            return;
+        int unitID = server.getBattleField().getNewUnitID();
+        connection.attach(unitID);
+        writers.put(unitID, connection);
+        try {
+            connection.send(Message.assignUnitID(unitID));
+        } catch (IOException e) {
+            connection.close();
         }
+    }
 
-        for (MessageSocket s : clients.values()) {
-            System.out.println("REMOVING CLIENTS");
+    @Override
+    public void received(Transport.Connection connection, Message message) {
+        if (message.getRequest() == MessageRequest.assignUnitID) {
+            int unitID = message.getAssignedUnitID();
+            connection.attach(unitID);
+            clients.put("D" + unitID, connection);
+            System.out.println("D" + unitID + " CONNECTED");
+            // A unit that connects again is on the battlefield already, otherwise its spawn subscribes it
+            UnitState unit = server.getBattleField().getUnitByID(unitID);
+            if (unit != null)
+                interest.subscribe(connection, unit.getX(), unit.getY());
+        } else if (message.isRead()) {
+            // Any server can answer a read from its own copy of the battlefield
+            server.read(connection, message);
+        } else if (server.isMaster.get()) {
             try {
-                s.getSocket().close();
-            } catch (IOException ignored) {}
+                server.receiveMessage(message);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
         }
+    }
 
-        clients.clear();
-        try {
-            serverSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    @Override
+    public void disconnected(Transport.Connection connection) {
+        Object unitID = connection.attachment();
+        if (unitID != null) {
+            clients.remove("D" + unitID, connection);
+            writers.remove(unitID, connection);
         }
-
-        GameServer.isListening.set(false);
+        interest.unsubscribe(connection);
     }
 
-    private class ClientListener implements ServerMonitor.Listener {
-        private ClientMonitor monitor;
-
-        private ClientListener(ClientMonitor monitor) {
-            this.monitor = monitor;
-        }
+    /**
+     * A unit fell so far behind that the commits queued for it were
+     * dropped. Since a unit only follows its own commits, putting it
+     * where it stands now brings it up to date. The replies it was
+     * waiting for are lost, it stops waiting for them after a while.
+     */
+    @Override
+    public void overflowed(Transport.Connection connection) {
+        Object unitID = connection.attachment();
+        // Only the connections the commits go out over fall behind
+        if (unitID == null || clients.get("D" + unitID) != connection)
+            return;
+        System.out.println("D" + unitID + " FELL BEHIND, " + connection.getDropped() + " messages dropped");
 
-        @Override
-        public void processAction(String id) {
-            clients.remove(id);
-            monitor.removeListener(this);
+        UnitState unit = server.getBattleField().getUnitByID((Integer) unitID);
+        if (unit == null)
+            return;
+        try {
+            connection.send(Message.putUnit(Message.newId(unit.getUnitID(), 0), unit, unit.getX(), unit.getY()));
+        } catch (IOException e) {
+            connection.close();
         }
     }
 
@@ -0,0 +1,66 @@
+package org.distsys.common.concurrent;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that run the units of a client: their
+ * behaviour loops, their socket readers and the spawning of
+ * new units. The kind of thread is picked at startup through
+ * the das.threads property:
+ * <ul>
+ * <li>platform: one operating system thread per task (default).</li>
+ * <li>virtual: virtual threads, which only take a carrier thread
+ * while running, so a single client can run many more units.</li>
+ * </ul>
+ * Virtual threads need Java 21 or newer. They are looked up at
+ * runtime, so older runtimes fall back to platform threads.
+ */
+public final class UnitThreads {
+
+    private static final ThreadFactory factory = createFactory(System.getProperty("das.threads", "platform"));
+
+    private UnitThreads() {
+    }
+
+    /**
+     * Start a task in a new unit thread.
+     *
+     * @param name the name of the thread.
+     * @param task what the thread runs.
+     * @return the started thread.
+     */
+    public static Thread start(String name, Runnable task) {
+        Thread thread = factory.newThread(task);
+        thread.setName(name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return whether units run in virtual threads.
+     */
+    public static boolean isVirtual() {
+        return !(factory instanceof PlatformThreadFactory);
+    }
+
+    private static ThreadFactory createFactory(String mode) {
+        if (mode.equals("virtual")) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not available, using platform threads");
+            }
+        } else if (!mode.equals("platform")) {
+            System.out.println("Unknown thread mode " + mode + ", using platform threads");
+        }
+        return new PlatformThreadFactory();
+    }
+
+    private static class PlatformThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable task) {
+            return new Thread(task);
+        }
+    }
+}
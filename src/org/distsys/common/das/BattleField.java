@@ -1,15 +1,22 @@
 package org.distsys.common.das;
 
-import org.distsys.common.das.units.Dragon;
-import org.distsys.common.das.units.Player;
 import org.distsys.common.das.units.Unit;
 import org.distsys.common.das.units.Unit.UnitType;
+import org.distsys.common.das.units.UnitState;
 import org.distsys.common.messages.Message;
+import org.distsys.common.messages.Reply;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The actual battlefield where the fighting takes place.
@@ -18,16 +25,40 @@ import java.util.Map;
  * It is a singleton, which can be requested by the
  * getBattleField() method. A unit can be put onto the
  * battlefield by using the putUnit() method.
+ * <p>
+ * The board itself only stores primitives: every cell holds
+ * the id of the unit standing on it (0 when empty) and the
+ * properties of the units live in a {@link UnitTable}. Large
+ * maps use a {@link ChunkedGrid}, which only allocates the
+ * parts of the map that are occupied.
+ * <p>
+ * Mutations lock only the regions of the cells they touch (see
+ * {@link RegionLocks}), so actions in different parts of the
+ * map do not wait for each other. Changes to the unit table
+ * itself, i.e. adding and removing units, are guarded by the
+ * table's monitor. Readers never lock at all, they validate what
+ * they read against the sequence of the region instead.
  *
  * @author Pieter Anemaet, Boaz Pat-El
  */
 public class BattleField implements Serializable {
 	private static final long serialVersionUID = 8581323041207874810L;
 
-	private Map<Integer, Unit> unitMap = new HashMap<>();
+	/* The id of the unit on every cell, replaced as a whole by a snapshot */
+	private volatile Grid grid;
 
-	/* The array of units */
-	private Unit[][] map;
+	/* The properties of all units on the battlefield. Replaced by a larger
+	 * copy when it is full, so lock-free readers never see its arrays change.
+	 */
+	private volatile UnitTable units;
+
+	/* Units running in this process, so their own state can
+	 * follow what happens to them on the battlefield.
+	 */
+	private transient Map<Integer, Unit> localUnits;
+
+	/* The id of the last message applied of every unit running elsewhere, see applyRemote */
+	private transient Map<Integer, Long> remoteMessages;
 
 	/* The static singleton */
 	private static BattleField battlefield;
@@ -35,37 +66,122 @@ public class BattleField implements Serializable {
 	/* The last id that was assigned to an unit. This variable is used to
 	 * enforce that each unit has its own unique id.
 	 */
-	private int lastUnitID = 0;
+	private final AtomicInteger lastUnitID = new AtomicInteger();
+
+	/* Moves that could not be made, because the square was taken or the unit was gone */
+	private final AtomicLong rejectedMoves = new AtomicLong();
 
-	public final static int MAP_WIDTH = 25;
-	public final static int MAP_HEIGHT = 25;
-	private ArrayList<Unit> units;
+	public final static int DEFAULT_MAP_WIDTH = 25;
+	public final static int DEFAULT_MAP_HEIGHT = 25;
+
+	/* Maps with more cells than this use a sparse, chunked grid */
+	private final static int DENSE_GRID_LIMIT = 1 << 20;
+
+	/* Tile size of the lock regions, 0 locks the whole map at once */
+	public final static int LOCK_TILE_SIZE = Integer.getInteger("das.lockTileSize", 0);
+
+	private final int width;
+	private final int height;
+	private final int lockTileSize;
+
+	/* Locks guarding the cells, and the units standing on them */
+	private transient RegionLocks locks;
+
+	/* Version of the state, raised every time a delta is taken or applied */
+	private volatile long version;
+
+	/* Ids of the units changed since the last delta, null when changes are not tracked */
+	private transient volatile Set<Integer> changedUnits;
 
 	/**
 	 * Initialize the battlefield to the specified size
 	 *
-	 * @param width  of the battlefield
-	 * @param height of the battlefield
+	 * @param width        of the battlefield
+	 * @param height       of the battlefield
+	 * @param lockTileSize of the regions that are locked independently
 	 */
-	private BattleField(int width, int height) {
-		synchronized (this) {
-			map = new Unit[width][height];
-			units = new ArrayList<>();
-		}
+	public BattleField(int width, int height, int lockTileSize) {
+		this.width = width;
+		this.height = height;
+		this.lockTileSize = lockTileSize;
+		grid = createGrid(width, height);
+		units = new UnitTable();
+		locks = new RegionLocks(width, height, lockTileSize);
+		localUnits = new ConcurrentHashMap<>();
+		remoteMessages = new ConcurrentHashMap<>();
 	}
 
 	/**
 	 * Singleton method which returns the sole
-	 * instance of the battlefield.
+	 * instance of the battlefield. Its size can be configured
+	 * through the das.mapWidth and das.mapHeight properties.
 	 *
 	 * @return the battlefield.
 	 */
 	public static BattleField getBattleField() {
 		if (battlefield == null)
-			battlefield = new BattleField(MAP_WIDTH, MAP_HEIGHT);
+			battlefield = new BattleField(
+					Integer.getInteger("das.mapWidth", DEFAULT_MAP_WIDTH),
+					Integer.getInteger("das.mapHeight", DEFAULT_MAP_HEIGHT),
+					LOCK_TILE_SIZE);
 		return battlefield;
 	}
 
+	/**
+	 * @return the width of the battlefield.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return the height of the battlefield.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return whether the position lies on the battlefield.
+	 */
+	public boolean contains(int x, int y) {
+		return x >= 0 && x < width && y >= 0 && y < height;
+	}
+
+	/**
+	 * Register a unit that runs in this process. Its hitpoints
+	 * are kept up to date and it is disconnected once it is
+	 * removed from the battlefield.
+	 *
+	 * @param unit the local unit.
+	 */
+	public void registerLocalUnit(Unit unit) {
+		localUnits.put(unit.getUnitID(), unit);
+	}
+
+	/**
+	 * Apply a commit of a unit that runs in another process. The
+	 * server passes commits on to all units near the squares they
+	 * change, so the local units learn what the others do to them
+	 * and around them. Each of these units gets the same commit, it
+	 * is only applied the first time. Commits of a local unit are
+	 * left to that unit, which applies its own once they come back.
+	 *
+	 * @param message the committed message.
+	 */
+	public void applyRemote(Message message) {
+		int unitID = message.getUnitID();
+		if (localUnits.containsKey(unitID))
+			return;
+		// The messages of a unit are committed in the order it sent them, so an older id was applied already
+		remoteMessages.compute(unitID, (id, last) -> {
+			if (last != null && last >= message.getId())
+				return last;
+			processMessage(message);
+			return message.getId();
+		});
+	}
+
 	/**
 	 * Puts a new unit at the specified position. First, it
 	 * checks whether the position is empty, if not, it
@@ -79,17 +195,41 @@ public class BattleField implements Serializable {
 	 * @return true when the unit has been put on the
 	 * specified position.
 	 */
-	private boolean spawnUnit(Unit unit, int x, int y) {
-		synchronized (this) {
-			if (map[x][y] != null)
-				return false;
+	private boolean spawnUnit(UnitState unit, int x, int y) {
+		int region = locks.regionOf(x, y);
+		while (true) {
+			locks.lock(region);
+			try {
+				if (grid.get(x, y) != 0)
+					return false;
 
-			map[x][y] = unit;
-			unit.setPosition(x, y);
-		}
-		units.add(unit);
+				synchronized (units) {
+					if (units.slotOf(unit.getUnitID()) >= 0)
+						return false;
 
-		return true;
+					if (units.canAdd(unit.getUnitID())) {
+						units.add(unit.getUnitID(), unit.getType(), x, y, unit.getHitPoints(), unit.getMaxHitPoints(), unit.getAttackPoints());
+						markChanged(unit.getUnitID());
+						grid.set(x, y, unit.getUnitID());
+						followLocalUnit(unit.getUnitID(), x, y);
+						return true;
+					}
+				}
+			} finally {
+				locks.unlock(region);
+			}
+
+			// The unit table is full, replace it by a larger copy while nobody is changing it and try again
+			locks.lockAll();
+			try {
+				synchronized (units) {
+					if (!units.canAdd(unit.getUnitID()))
+						units = units.grownFor(unit.getUnitID());
+				}
+			} finally {
+				locks.unlockAll();
+			}
+		}
 	}
 
 	/**
@@ -104,71 +244,518 @@ public class BattleField implements Serializable {
 	 * @return true when the unit has been put on the
 	 * specified position.
 	 */
-	private synchronized boolean putUnit(Unit unit, int x, int y) {
-		if (map[x][y] != null)
-			return false;
-
-		map[x][y] = unit;
-		unit.setPosition(x, y);
+	private boolean putUnit(UnitState unit, int x, int y) {
+		int slot;
+		synchronized (units) {
+			slot = units.slotOf(unit.getUnitID());
+		}
+		if (slot < 0)
+			return spawnUnit(unit, x, y);
 
-		return true;
+		return relocateUnit(unit.getUnitID(), x, y, false);
 	}
 
 	/**
-	 * Get a unit from a position.
+	 * Get a unit from a position. Like all other reads, this
+	 * does not take any lock, see {@link #readCell}.
 	 *
 	 * @param x position.
 	 * @param y position.
-	 * @return the unit at the specified position, or return
+	 * @return the state of the unit at the specified position, or return
 	 * null if there is no unit at that specific position.
 	 */
-	public Unit getUnit(int x, int y) {
-		assert x >= 0 && x < map.length;
-		assert y >= 0 && x < map[0].length;
+	public UnitState getUnit(int x, int y) {
+		assert x >= 0 && x < width;
+		assert y >= 0 && y < height;
 
-		return map[x][y];
+		return readCell(x, y, (table, slot) -> slot < 0 ? null : stateOf(table, slot));
 	}
 
 	/**
-	 * Move the specified unit a certain number of steps.
+	 * Get all units on the battlefield. Iterating over the units
+	 * rather than over the cells keeps this cheap on large maps.
 	 *
-	 * @param unit is the unit being moved.
-	 * @param newX is the new x position.
-	 * @param newY is the new position.
-	 * @return true on success.
+	 * @return the state of every unit.
 	 */
-	private synchronized boolean moveUnit(Unit unit, int newX, int newY) {
-		int originalX = unit.getX();
-		int originalY = unit.getY();
+	public List<UnitState> getUnits() {
+		List<UnitState> result = new ArrayList<>();
+		for (int slot = 0; slot < units.getHighWater(); slot++) {
+			UnitState state = readSlot(slot);
+			if (state != null)
+				result.add(state);
+		}
+		return result;
+	}
 
-		if (unit.getHitPoints() <= 0)
+	/**
+	 * Get a unit by its id, wherever it stands.
+	 *
+	 * @param unitID the id of the unit.
+	 * @return the state of the unit, or null if it is not on the battlefield.
+	 */
+	public UnitState getUnitByID(int unitID) {
+		int slot;
+		synchronized (units) {
+			slot = units.slotOf(unitID);
+		}
+		UnitState state = slot < 0 ? null : readSlot(slot);
+		return state == null || state.getUnitID() != unitID ? null : state;
+	}
+
+	/**
+	 * Get the type of the unit on a position, without
+	 * copying the rest of its state.
+	 *
+	 * @param x position.
+	 * @param y position.
+	 * @return the type of the unit, or undefined if
+	 * the position is empty.
+	 */
+	public UnitType getType(int x, int y) {
+		return readCell(x, y, (table, slot) -> slot < 0 ? UnitType.undefined : table.getType(slot));
+	}
+
+	/**
+	 * Get the contents of all cells within a radius around a
+	 * position, so a unit can look around in a single request.
+	 *
+	 * @param x      position.
+	 * @param y      position.
+	 * @param radius of the square around the position.
+	 * @return the neighbourhood of the position.
+	 */
+	public Neighbourhood getNeighbourhood(int x, int y, int radius) {
+		Neighbourhood neighbourhood = new Neighbourhood(x, y, radius);
+		for (int i = x - radius; i <= x + radius; i++)
+			for (int j = y - radius; j <= y + radius; j++) {
+				if (!contains(i, j))
+					continue;
+
+				final int cellX = i, cellY = j;
+				readCell(i, j, (table, slot) -> {
+					if (slot < 0)
+						neighbourhood.set(cellX, cellY, UnitType.undefined, 0, 0);
+					else
+						neighbourhood.set(cellX, cellY, table.getType(slot), table.getUnitID(slot),
+								(float) table.getHitPoints(slot) / table.getMaxHitPoints(slot));
+					return null;
+				});
+			}
+		return neighbourhood;
+	}
+
+	/* Reads the unit in a slot of a table, the slot is -1 for an empty cell */
+	private interface SlotReader<T> {
+		T read(UnitTable table, int slot);
+	}
+
+	/**
+	 * Read the unit on a cell without locking. The region of the
+	 * cell acts as a sequence lock: the read is repeated until no
+	 * writer changed the region while it was being read, so the
+	 * result is consistent without ever blocking a writer.
+	 * <p>
+	 * The grid and the unit table are taken once, after the stamp. They
+	 * are only replaced while every region is locked, so a replacement
+	 * during the read fails the stamp, and every slot the grid leads
+	 * to lies within the table it was taken with.
+	 *
+	 * @param x      position.
+	 * @param y      position.
+	 * @param reader reads the slot of the unit on the cell.
+	 * @return the result of the last, consistent, read.
+	 */
+	private <T> T readCell(int x, int y, SlotReader<T> reader) {
+		int region = locks.regionOf(x, y);
+		while (true) {
+			long stamp = locks.startRead(region);
+			if (stamp == 0) {
+				Thread.yield(); // A writer is busy in this region
+				continue;
+			}
+
+			UnitTable table = units;
+			int slot = table.slotOf(grid.get(x, y));
+			T result = reader.read(table, slot);
+			if (locks.validate(region, stamp))
+				return result;
+		}
+	}
+
+	/**
+	 * Read the unit in a slot without locking, validating it
+	 * against the region the unit is standing in.
+	 *
+	 * @return the state of the unit, or null if the slot is free.
+	 */
+	private UnitState readSlot(int slot) {
+		while (true) {
+			UnitTable table = units;
+			if (slot < 0 || slot >= table.getCapacity())
+				return null;
+
+			int x = table.getX(slot), y = table.getY(slot);
+			if (!contains(x, y)) {
+				// The slot was being filled, its position is not there yet
+				Thread.yield();
+				continue;
+			}
+			int region = locks.regionOf(x, y);
+			long stamp = locks.startRead(region);
+
+			UnitState state = null;
+			if (table.isOccupied(slot)) {
+				state = stateOf(table, slot);
+				/* Only trust the slot if its unit stands in the validated region,
+				 * it could just have moved or been replaced by a new unit.
+				 */
+				if (state.getX() != x || state.getY() != y || grid.get(x, y) != state.getUnitID())
+					continue;
+			}
+
+			// A table replaced before the stamp was taken does not fail it
+			if (locks.validate(region, stamp) && units == table)
+				return state;
+		}
+	}
+
+	private UnitState stateOf(UnitTable table, int slot) {
+		return new UnitState(table.getUnitID(slot), table.getType(slot), table.getX(slot), table.getY(slot),
+				table.getHitPoints(slot), table.getMaxHitPoints(slot), table.getAttackPoints(slot));
+	}
+
+	/**
+	 * Move the specified unit one step, to a square next to it.
+	 * The servers only tell the units around the squares next to
+	 * the destination that the unit left, so longer moves are refused.
+	 *
+	 * @param unitID is the id of the unit being moved.
+	 * @param newX   is the new x position.
+	 * @param newY   is the new position.
+	 * @return true on success.
+	 */
+	private boolean moveUnit(int unitID, int newX, int newY) {
+		if (!contains(newX, newY))
 			return false;
 
-		if (newX >= 0 && newX < BattleField.MAP_WIDTH)
-			if (newY >= 0 && newY < BattleField.MAP_HEIGHT)
-				if (map[newX][newY] == null) {
-					if (putUnit(unit, newX, newY)) {
-						map[originalX][originalY] = null;
-						return true;
-					}
-				}
+		return relocateUnit(unitID, newX, newY, true);
+	}
+
+	/**
+	 * Move a unit that is already on the battlefield to an empty
+	 * position. Only the regions of the source and the destination
+	 * are locked.
+	 *
+	 * @param unitID is the id of the unit being moved.
+	 * @param newX   is the new x position.
+	 * @param newY   is the new position.
+	 * @param step   whether this is a move of the unit itself, which has to be
+	 *               alive and can only go to a square next to it.
+	 * @return true on success.
+	 */
+	private boolean relocateUnit(int unitID, int newX, int newY, boolean step) {
+		while (true) {
+			int slot, originalX, originalY;
+			synchronized (units) {
+				slot = units.slotOf(unitID);
+				if (slot < 0)
+					return false;
+				originalX = units.getX(slot);
+				originalY = units.getY(slot);
+			}
+
+			int from = locks.regionOf(originalX, originalY);
+			int to = locks.regionOf(newX, newY);
+			locks.lock(from, to);
+			try {
+				// The unit could have moved, or a snapshot replaced the table, before we got hold of the locks
+				if (grid.get(originalX, originalY) != unitID || units.slotOf(unitID) != slot)
+					continue;
+
+				if (step && (units.getHitPoints(slot) <= 0
+						|| Math.abs(newX - originalX) + Math.abs(newY - originalY) != 1))
+					return false;
 
-		return false;
+				if (grid.get(newX, newY) != 0)
+					return false;
+
+				grid.set(originalX, originalY, 0);
+				grid.set(newX, newY, unitID);
+				units.setPosition(slot, newX, newY);
+				markChanged(unitID);
+				followLocalUnit(unitID, newX, newY);
+				return true;
+			} finally {
+				locks.unlock(from, to);
+			}
+		}
 	}
 
 	/**
-	 * Remove a unit from a specific position and makes the unit disconnect from the server.
+	 * Adjust the hitpoints of the unit on a position. Units that
+	 * die because of it are removed from the battlefield.
 	 *
-	 * @param x position.
-	 * @param y position.
+	 * @param x        position.
+	 * @param y        position.
+	 * @param modifier is to be added to the hitpoint count.
+	 */
+	private void adjustHitPoints(int x, int y, int modifier) {
+		int region = locks.regionOf(x, y);
+		int unitID;
+		boolean died = false;
+		locks.lock(region);
+		try {
+			unitID = grid.get(x, y);
+			int slot = units.slotOf(unitID);
+			if (slot < 0)
+				return;
+
+			markChanged(unitID);
+			if (units.adjustHitPoints(slot, modifier) <= 0)
+				died = removeFromCell(x, y) != 0;
+		} finally {
+			locks.unlock(region);
+		}
+
+		/* A local unit reports its own death to the server. This is
+		 * done outside of the lock, since it can lead to other
+		 * regions of the battlefield being locked.
+		 */
+		Unit local = died ? localUnits.remove(unitID) : localUnits.get(unitID);
+		if (local != null) {
+			local.adjustHitPoints(modifier);
+			if (died)
+				local.disconnect();
+		}
+	}
+
+	/**
+	 * Remove a unit from the battlefield and make it disconnect from
+	 * the server. The unit is looked up by its id rather than by
+	 * position, so a late removal can not take out another unit that
+	 * moved onto the square since.
+	 *
+	 * @param unitID is the id of the unit being removed.
+	 */
+	private void removeUnit(int unitID) {
+		while (true) {
+			int x, y;
+			synchronized (units) {
+				int slot = units.slotOf(unitID);
+				if (slot < 0)
+					return; // The unit was removed already
+				x = units.getX(slot);
+				y = units.getY(slot);
+			}
+
+			int region = locks.regionOf(x, y);
+			locks.lock(region);
+			try {
+				// The unit could have moved, or a snapshot replaced the table, before we got hold of the lock
+				if (grid.get(x, y) != unitID)
+					continue;
+				removeFromCell(x, y);
+			} finally {
+				locks.unlock(region);
+			}
+			break;
+		}
+
+		Unit unitToRemove = localUnits.remove(unitID);
+		if (unitToRemove != null)
+			unitToRemove.disconnect();
+	}
+
+	/**
+	 * Clear a cell and free the slot of the unit on it. The
+	 * region of the cell has to be locked by the caller.
+	 *
+	 * @return the id of the removed unit, or 0 if the cell was empty.
+	 */
+	private int removeFromCell(int x, int y) {
+		int unitID = grid.get(x, y);
+		if (unitID == 0)
+			return 0;
+
+		grid.set(x, y, 0);
+		synchronized (units) {
+			units.remove(units.slotOf(unitID));
+		}
+		markChanged(unitID);
+		return unitID;
+	}
+
+	/**
+	 * Keep the position of a unit that runs in this process in
+	 * line with where it stands on the battlefield.
 	 */
-	private synchronized void removeUnit(int x, int y) {
-		Unit unitToRemove = this.getUnit(x, y);
-		if (unitToRemove == null)
-			return; // There was no unit here to remove
-		map[x][y] = null;
-		unitToRemove.disconnect();
-		units.remove(unitToRemove);
+	private void followLocalUnit(int unitID, int x, int y) {
+		Unit local = localUnits.get(unitID);
+		if (local != null)
+			local.setPosition(x, y);
+	}
+
+	private void markChanged(int unitID) {
+		Set<Integer> changed = changedUnits;
+		if (changed != null)
+			changed.add(unitID);
+	}
+
+	/**
+	 * Start or stop keeping track of the units that change, which
+	 * is needed to take deltas with {@link #takeDelta(List)}. Only
+	 * the battlefield that others synchronize with needs this.
+	 */
+	public void setTrackChanges(boolean track) {
+		changedUnits = track ? ConcurrentHashMap.newKeySet() : null;
+	}
+
+	/**
+	 * @return the number of moves that could not be made.
+	 */
+	public long getRejectedMoves() {
+		return rejectedMoves.get();
+	}
+
+	/**
+	 * @return the version of the state of the battlefield.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Collect the changes since the previous delta into a new one,
+	 * raising the version of the battlefield. The caller makes sure
+	 * no changes are made while the delta is taken.
+	 *
+	 * @param messages the messages that caused the changes.
+	 * @return the delta from the previous version to the new one.
+	 */
+	public StateDelta takeDelta(List<Message> messages) {
+		Set<Integer> changed = changedUnits;
+		if (changed == null)
+			throw new IllegalStateException("Changes are not being tracked");
+
+		StateDelta delta = new StateDelta(version, version + 1, false);
+		for (Iterator<Integer> iterator = changed.iterator(); iterator.hasNext(); ) {
+			int unitID = iterator.next();
+			iterator.remove();
+
+			int slot = units.slotOf(unitID);
+			UnitState state = slot < 0 ? null : readSlot(slot);
+			if (state == null || state.getUnitID() != unitID)
+				delta.addRemoval(unitID);
+			else
+				addToDelta(delta, state);
+		}
+		delta.setLastUnitID(lastUnitID.get());
+		delta.setMessages(messages);
+		version = delta.getVersion();
+		return delta;
+	}
+
+	/**
+	 * Take a delta holding the complete state of the battlefield, for
+	 * receivers that are too far behind to catch up otherwise and for
+	 * checkpoints. Writers are only held up while the unit table is
+	 * copied, the snapshot is built from the copy afterwards.
+	 * <p>
+	 * A master might have changed units for the next version already.
+	 * Applying that version on top of the snapshot still gives the
+	 * right result, since deltas hold complete unit states.
+	 *
+	 * @return a snapshot at the current version.
+	 */
+	public StateDelta takeSnapshot() {
+		UnitTable copy = new UnitTable(1);
+		long snapshotVersion;
+		int snapshotLastUnitID;
+		locks.lockAll();
+		try {
+			copy.copyFrom(units);
+			snapshotVersion = version;
+			snapshotLastUnitID = lastUnitID.get();
+		} finally {
+			locks.unlockAll();
+		}
+
+		StateDelta snapshot = new StateDelta(0, snapshotVersion, true);
+		for (int slot = 0; slot < copy.getHighWater(); slot++) {
+			if (!copy.isOccupied(slot))
+				continue;
+			snapshot.addUnit(copy.getUnitID(slot), copy.getType(slot), copy.getX(slot), copy.getY(slot),
+					copy.getHitPoints(slot), copy.getMaxHitPoints(slot), copy.getAttackPoints(slot));
+		}
+		snapshot.setLastUnitID(snapshotLastUnitID);
+		return snapshot;
+	}
+
+	private static void addToDelta(StateDelta delta, UnitState state) {
+		delta.addUnit(state.getUnitID(), state.getType(), state.getX(), state.getY(),
+				state.getHitPoints(), state.getMaxHitPoints(), state.getAttackPoints());
+	}
+
+	/**
+	 * Bring the battlefield to a newer version by applying a delta.
+	 * Snapshots are always applied, other deltas only if they start
+	 * at the current version of the battlefield.
+	 *
+	 * @param delta the changes to apply.
+	 * @return true if the delta was applied, false if the battlefield
+	 * is at another version and needs to catch up first.
+	 */
+	public boolean applyDelta(StateDelta delta) {
+		locks.lockAll();
+		try {
+			synchronized (units) {
+				if (delta.isSnapshot()) {
+					grid = createGrid(width, height);
+					units = new UnitTable(Math.max(1, delta.getUnitCount()));
+				} else if (delta.getBaseVersion() != version) {
+					return false;
+				}
+
+				for (int i = 0; i < delta.getRemovedCount(); i++) {
+					int slot = units.slotOf(delta.getRemovedID(i));
+					if (slot < 0)
+						continue;
+					grid.set(units.getX(slot), units.getY(slot), 0);
+					units.remove(slot);
+				}
+
+				// Lift all changed units off the map first, they might take each other's places
+				for (int i = 0; i < delta.getUnitCount(); i++) {
+					int slot = units.slotOf(delta.getUnitID(i));
+					if (slot < 0)
+						continue;
+					grid.set(units.getX(slot), units.getY(slot), 0);
+					units.remove(slot);
+				}
+
+				for (int i = 0; i < delta.getUnitCount(); i++) {
+					int unitID = delta.getUnitID(i);
+					int x = delta.getX(i), y = delta.getY(i);
+
+					// Whatever still stands on the cell is outdated
+					int occupant = grid.get(x, y);
+					if (occupant != 0)
+						units.remove(units.slotOf(occupant));
+
+					if (!units.canAdd(unitID))
+						units = units.grownFor(unitID);
+					units.add(unitID, delta.getType(i), x, y, delta.getHitPoints(i),
+							delta.getMaxHitPoints(i), delta.getAttackPoints(i));
+					grid.set(x, y, unitID);
+				}
+
+				lastUnitID.accumulateAndGet(delta.getLastUnitID(), Math::max);
+				version = delta.getVersion();
+				return true;
+			}
+		} finally {
+			locks.unlockAll();
+		}
 	}
 
 	/**
@@ -176,106 +763,66 @@ public class BattleField implements Serializable {
 	 *
 	 * @return int: a new unique unit ID.
 	 */
-	public synchronized int getNewUnitID() {
-		return ++lastUnitID;
+	public int getNewUnitID() {
+		return lastUnitID.incrementAndGet();
 	}
 
-	public Message processMessage(Message msg) {
-		Message reply = null;
-		Integer origin = (Integer) msg.get("origin");
-		MessageRequest request = (MessageRequest) msg.get("request");
-		Unit unit;
-		switch (request) {
+	public Reply processMessage(Message msg) {
+		Reply reply = null;
+		int x = msg.getX();
+		int y = msg.getY();
+		switch (msg.getRequest()) {
 			case spawnUnit:
-				this.spawnUnit((Unit) msg.get("unit"), (Integer) msg.get("x"), (Integer) msg.get("y"));
+				this.spawnUnit(msg.getUnit(), x, y);
 				break;
 			case putUnit:
-				this.putUnit((Unit) msg.get("unit"), (Integer) msg.get("x"), (Integer) msg.get("y"));
+				this.putUnit(msg.getUnit(), x, y);
 				break;
-			case getUnit: {
-				reply = new Message();
-				int x = (Integer) msg.get("x");
-				int y = (Integer) msg.get("y");
+			case getUnit:
 				/* Copy the id of the message so that the unit knows
 				 * what message the battlefield responded to.
 				 */
-				reply.put("id", msg.get("id"));
-				// Get the unit at the specific location
-				reply.put("unit", getUnit(x, y));
+				reply = Reply.ofUnit(msg.getId(), getUnit(x, y));
 				break;
-			}
-			case getType: {
-				reply = new Message();
-				int x = (Integer) msg.get("x");
-				int y = (Integer) msg.get("y");
-				/* Copy the id of the message so that the unit knows
-				 * what message the battlefield responded to.
-				 */
-				reply.put("id", msg.get("id"));
-				if (getUnit(x, y) instanceof Player)
-					reply.put("type", UnitType.player);
-				else if (getUnit(x, y) instanceof Dragon)
-					reply.put("type", UnitType.dragon);
-				else reply.put("type", UnitType.undefined);
+			case getType:
+				reply = Reply.ofType(msg.getId(), getType(x, y));
 				break;
-			}
-			case dealDamage: {
-				int x = (Integer) msg.get("x");
-				int y = (Integer) msg.get("y");
-				unit = this.getUnit(x, y);
-				if (unit != null)
-					unit.adjustHitPoints(-(Integer) msg.get("damage"));
-				/* Copy the id of the message so that the unit knows 
-				 * what message the battlefield responded to. 
-				 */
+			case getNeighbourhood:
+				reply = Reply.ofNeighbourhood(msg.getId(), getNeighbourhood(x, y, msg.getRadius()));
 				break;
-			}
-			case healDamage: {
-				int x = (Integer) msg.get("x");
-				int y = (Integer) msg.get("y");
-				unit = this.getUnit(x, y);
-				if (unit != null)
-					unit.adjustHitPoints((Integer) msg.get("healed"));
-				/* Copy the id of the message so that the unit knows 
-				 * what message the battlefield responded to. 
-				 */
+			case dealDamage:
+				this.adjustHitPoints(x, y, -msg.getDamage());
+				break;
+			case healDamage:
+				this.adjustHitPoints(x, y, msg.getHealed());
 				break;
-			}
 			case moveUnit:
-				reply = new Message();
-				Unit u = (Unit) msg.get("unit");
-				if(!this.moveUnit(u, (Integer) msg.get("x"), (Integer) msg.get("y"))) System.out.println("NOPEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEEE");
+				if (!this.moveUnit(msg.getUnitID(), x, y))
+					rejectedMoves.incrementAndGet();
 				/* Copy the id of the message so that the unit knows 
 				 * what message the battlefield responded to. 
 				 */
-				reply.put("id", msg.get("id"));
+				reply = new Reply(msg.getId());
 				break;
 			case removeUnit:
-				this.removeUnit((Integer) msg.get("x"), (Integer) msg.get("y"));
+				// Units only ever remove themselves
+				this.removeUnit(msg.getUnitID());
+				break;
+			default:
+				break;
 		}
 
-		if (reply != null)
-			reply.put("origin", origin);
-
 		return reply;
 	}
 
-	public synchronized void updateState(BattleField battleField) {
-		for (int i = 0; i < battleField.map.length; i++) {
-			System.arraycopy(battleField.map[i], 0, this.map[i], 0, battleField.map[i].length);
-		}
-		units.clear();
-		units.addAll(battleField.units);
-	}
-
 	/**
 	 * Close down the battlefield. Unregisters
 	 * the masterSocket so the program can
 	 * actually end.
 	 */
-	public synchronized void shutdown() {
+	public void shutdown() {
 		// Remove all units from the battlefield and make them disconnect from the server
-		for (Unit unit : units) {
+		for (Unit unit : localUnits.values()) {
 			unit.disconnect();
 			unit.stopRunnerThread();
 		}
@@ -283,16 +830,29 @@ public class BattleField implements Serializable {
 //        masterSocket.unRegister();
 	}
 
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		locks = new RegionLocks(width, height, lockTileSize);
+		localUnits = new ConcurrentHashMap<>();
+		remoteMessages = new ConcurrentHashMap<>();
+	}
+
+	private static Grid createGrid(int width, int height) {
+		if ((long) width * height <= DENSE_GRID_LIMIT)
+			return new DenseGrid(width, height);
+		return new ChunkedGrid();
+	}
+
 	@Override
 	public String toString() {
 		String res = "";
-		for (int i = 0; i < map.length; i++) {
-			for (int j = 0; j < map[i].length; j++) {
+		for (int i = 0; i < height; i++) {
+			for (int j = 0; j < width; j++) {
 				String s;
-				Unit u = map[j][i];
-				if (u instanceof Player)
+				UnitType type = getType(j, i);
+				if (type == UnitType.player)
 					s = "I";
-				else if (u instanceof Dragon)
+				else if (type == UnitType.dragon)
 					s = "$";
 				else s = ".";
 				res += " " + s + " ";
@@ -0,0 +1,101 @@
+package org.distsys.common.das;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sparse grid for very large maps. The map is divided into
+ * square chunks, which are only allocated once a unit stands
+ * on them and are released again when they become empty. The
+ * memory used therefore scales with the occupied area of the
+ * map rather than with its size.
+ * <p>
+ * Chunks are created and released atomically per chunk, so
+ * cells of one chunk that fall into different lock regions can
+ * still be changed concurrently.
+ */
+public class ChunkedGrid implements Grid {
+	private static final long serialVersionUID = -5340761398811049523L;
+
+	/* Chunks are CHUNK_SIZE x CHUNK_SIZE cells */
+	private static final int CHUNK_BITS = 6;
+	public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final ConcurrentHashMap<Long, Chunk> chunks;
+
+	private static class Chunk implements Serializable {
+		private static final long serialVersionUID = 2779541512046227402L;
+
+		private final int[] cells = new int[CHUNK_SIZE * CHUNK_SIZE];
+		/* Number of cells in use, the chunk is released when it drops to 0 */
+		private int occupied;
+
+		private Chunk copy() {
+			Chunk chunk = new Chunk();
+			System.arraycopy(cells, 0, chunk.cells, 0, cells.length);
+			chunk.occupied = occupied;
+			return chunk;
+		}
+	}
+
+	public ChunkedGrid() {
+		chunks = new ConcurrentHashMap<>();
+	}
+
+	@Override
+	public int get(int x, int y) {
+		Chunk chunk = chunks.get(key(x, y));
+		if (chunk == null)
+			return 0;
+		return chunk.cells[offset(x, y)];
+	}
+
+	@Override
+	public void set(int x, int y, int unitID) {
+		int offset = offset(x, y);
+		if (unitID == 0) {
+			chunks.computeIfPresent(key(x, y), (key, chunk) -> {
+				if (chunk.cells[offset] != 0) {
+					chunk.cells[offset] = 0;
+					if (--chunk.occupied == 0)
+						return null; // Release the empty chunk
+				}
+				return chunk;
+			});
+		} else {
+			chunks.compute(key(x, y), (key, chunk) -> {
+				if (chunk == null)
+					chunk = new Chunk();
+				if (chunk.cells[offset] == 0)
+					chunk.occupied++;
+				chunk.cells[offset] = unitID;
+				return chunk;
+			});
+		}
+	}
+
+	@Override
+	public Grid copy() {
+		ChunkedGrid grid = new ChunkedGrid();
+		for (Map.Entry<Long, Chunk> entry : chunks.entrySet())
+			grid.chunks.put(entry.getKey(), entry.getValue().copy());
+		return grid;
+	}
+
+	/**
+	 * @return the number of chunks currently allocated.
+	 */
+	public int getChunkCount() {
+		return chunks.size();
+	}
+
+	private static Long key(int x, int y) {
+		return ((long) (x >>> CHUNK_BITS) << 32) | (y >>> CHUNK_BITS);
+	}
+
+	private static int offset(int x, int y) {
+		return (y & CHUNK_MASK) * CHUNK_SIZE + (x & CHUNK_MASK);
+	}
+}
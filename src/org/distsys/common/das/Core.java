@@ -1,5 +1,6 @@
 package org.distsys.common.das;
 
+import org.distsys.common.concurrent.UnitThreads;
 import org.distsys.common.das.presentation.BattleFieldViewer;
 import org.distsys.common.das.units.Dragon;
 import org.distsys.common.das.units.Player;
@@ -13,9 +14,9 @@ import org.distsys.common.das.units.Player;
  * @author Pieter Anemaet, Boaz Pat-El
  */
 public class Core {
-    public static final int MIN_PLAYER_COUNT = 30;
-    public static final int MAX_PLAYER_COUNT = 60;
-    public static final int DRAGON_COUNT = 20;
+    public static final int MIN_PLAYER_COUNT = Integer.getInteger("das.minPlayers", 30);
+    public static final int MAX_PLAYER_COUNT = Integer.getInteger("das.maxPlayers", 60);
+    public static final int DRAGON_COUNT = Integer.getInteger("das.dragons", 20);
     public static final int TIME_BETWEEN_PLAYER_LOGIN = 5000; // In milliseconds
 
     public static BattleField battlefield;
@@ -53,8 +54,8 @@ public class Core {
                 int x, y, attempts = 0;
                 do {
                     // If finding an empty spot just keeps failing then we stop adding the new player
-                    x = (int) (Math.random() * BattleField.MAP_WIDTH);
-                    y = (int) (Math.random() * BattleField.MAP_HEIGHT);
+                    x = (int) (Math.random() * battlefield.getWidth());
+                    y = (int) (Math.random() * battlefield.getHeight());
                     attempts++;
                 } while (battlefield.getUnit(x, y) != null && attempts < 10);
 
@@ -99,8 +100,8 @@ public class Core {
             /* Try picking a random spot */
             int x, y, attempt = 0;
             do {
-                x = (int) (Math.random() * BattleField.MAP_WIDTH);
-                y = (int) (Math.random() * BattleField.MAP_HEIGHT);
+                x = (int) (Math.random() * battlefield.getWidth());
+                y = (int) (Math.random() * battlefield.getHeight());
                 attempt++;
             } while (battlefield.getUnit(x, y) != null && attempt < 10);
 
@@ -114,11 +115,7 @@ public class Core {
 			 * thread, making sure it does not
 			 * block the system.
 			 */
-            new Thread(new Runnable() {
-                public void run() {
-                    new Dragon(finalX, finalY);
-                }
-            }).start();
+            UnitThreads.start("spawn-dragon", () -> new Dragon(finalX, finalY));
 
         }
 
@@ -128,8 +125,8 @@ public class Core {
 			/* Once again, pick a random spot */
             int x, y, attempt = 0;
             do {
-                x = (int) (Math.random() * BattleField.MAP_WIDTH);
-                y = (int) (Math.random() * BattleField.MAP_HEIGHT);
+                x = (int) (Math.random() * battlefield.getWidth());
+                y = (int) (Math.random() * battlefield.getHeight());
                 attempt++;
             } while (battlefield.getUnit(x, y) != null && attempt < 10);
 
@@ -143,11 +140,7 @@ public class Core {
 			 * thread, making sure it does not
 			 * block the system.
 			 */
-            new Thread(new Runnable() {
-                public void run() {
-                    new Player(finalX, finalY);
-                }
-            }).start();
+            UnitThreads.start("spawn-player", () -> new Player(finalX, finalY));
 
         }
     }
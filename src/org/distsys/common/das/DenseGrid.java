@@ -0,0 +1,37 @@
+package org.distsys.common.das;
+
+/**
+ * Grid backed by a single array holding every cell, row by row.
+ * Best suited for small maps, where most of the cells are in use.
+ */
+public class DenseGrid implements Grid {
+	private static final long serialVersionUID = 4404936722209924283L;
+
+	private final int width;
+	private final int[] cells;
+
+	public DenseGrid(int width, int height) {
+		this.width = width;
+		this.cells = new int[width * height];
+	}
+
+	private DenseGrid(DenseGrid other) {
+		this.width = other.width;
+		this.cells = other.cells.clone();
+	}
+
+	@Override
+	public int get(int x, int y) {
+		return cells[y * width + x];
+	}
+
+	@Override
+	public void set(int x, int y, int unitID) {
+		cells[y * width + x] = unitID;
+	}
+
+	@Override
+	public Grid copy() {
+		return new DenseGrid(this);
+	}
+}
@@ -0,0 +1,29 @@
+package org.distsys.common.das;
+
+import java.io.Serializable;
+
+/**
+ * Maps every cell of the battlefield onto the id of the
+ * unit standing on it, 0 meaning the cell is empty.
+ * <p>
+ * Implementations must allow cells in different lock regions
+ * of the battlefield to be changed concurrently, the cell
+ * itself is guarded by the battlefield's region lock.
+ */
+public interface Grid extends Serializable {
+
+	/**
+	 * @return the id of the unit on the cell, or 0 if the cell is empty.
+	 */
+	int get(int x, int y);
+
+	/**
+	 * Put a unit on a cell, or clear it when the id is 0.
+	 */
+	void set(int x, int y, int unitID);
+
+	/**
+	 * @return an independent copy of this grid.
+	 */
+	Grid copy();
+}
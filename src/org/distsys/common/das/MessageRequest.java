@@ -7,5 +7,8 @@ package org.distsys.common.das;
  * @author Pieter Anemaet, Boaz Pat-El
  */
 public enum MessageRequest {
-    spawnUnit, getUnit, moveUnit, putUnit, removeUnit, getType, dealDamage, healDamage,
+    spawnUnit, getUnit, moveUnit, putUnit, removeUnit, getType, dealDamage, healDamage, getNeighbourhood,
+
+    /* Between servers and units only, never applied to the battlefield */
+    assignUnitID, batch, reply, aborted,
 }
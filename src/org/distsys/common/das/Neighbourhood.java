@@ -0,0 +1,99 @@
+package org.distsys.common.das;
+
+import org.distsys.common.das.units.Unit.UnitType;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The contents of all cells within a certain radius around
+ * a position, as returned by a single getNeighbourhood request.
+ * For every cell it holds the type and id of the unit on it and
+ * the ratio between its current and maximum hitpoints. Cells
+ * outside of the battlefield are reported as empty.
+ */
+public final class Neighbourhood implements Serializable {
+	private static final long serialVersionUID = -1902573917366101329L;
+
+	private final int centerX, centerY;
+	private final int radius;
+	private final int size;
+
+	private final byte[] types;
+	private final int[] unitIDs;
+	private final float[] hitPointRatios;
+
+	/**
+	 * Create an empty neighbourhood, to be filled by the battlefield
+	 * or by the decoding of a reply.
+	 */
+	public Neighbourhood(int centerX, int centerY, int radius) {
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.radius = radius;
+		this.size = 2 * radius + 1;
+		types = new byte[size * size];
+		unitIDs = new int[size * size];
+		hitPointRatios = new float[size * size];
+		Arrays.fill(types, (byte) UnitType.undefined.ordinal());
+	}
+
+	public void set(int x, int y, UnitType type, int unitID, float hitPointRatio) {
+		int i = index(x, y);
+		types[i] = (byte) type.ordinal();
+		unitIDs[i] = unitID;
+		hitPointRatios[i] = hitPointRatio;
+	}
+
+	/**
+	 * @return whether the position lies within the radius.
+	 */
+	public boolean contains(int x, int y) {
+		return Math.abs(x - centerX) <= radius && Math.abs(y - centerY) <= radius;
+	}
+
+	/**
+	 * @return the type of the unit on the position, or undefined
+	 * if it is empty or outside of the neighbourhood.
+	 */
+	public UnitType getType(int x, int y) {
+		if (!contains(x, y))
+			return UnitType.undefined;
+		return UnitType.values()[types[index(x, y)]];
+	}
+
+	/**
+	 * @return the id of the unit on the position, or 0 if there is none.
+	 */
+	public int getUnitID(int x, int y) {
+		if (!contains(x, y))
+			return 0;
+		return unitIDs[index(x, y)];
+	}
+
+	/**
+	 * @return the current hitpoints of the unit on the position divided
+	 * by its maximum hitpoints, or 0 if there is no unit.
+	 */
+	public float getHitPointRatio(int x, int y) {
+		if (!contains(x, y))
+			return 0;
+		return hitPointRatios[index(x, y)];
+	}
+
+	public int getCenterX() {
+		return centerX;
+	}
+
+	public int getCenterY() {
+		return centerY;
+	}
+
+	public int getRadius() {
+		return radius;
+	}
+
+	private int index(int x, int y) {
+		return (y - centerY + radius) * size + (x - centerX + radius);
+	}
+}
@@ -0,0 +1,111 @@
+package org.distsys.common.das;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Splits a battlefield into square lock regions of a certain
+ * tile size, so that mutations on cells in different regions
+ * can proceed in parallel.
+ * <p>
+ * Whenever more than one region is needed, the regions are
+ * locked in ascending order to rule out deadlocks. A tile size
+ * of 0 (or one that covers the whole map) results in a single
+ * region, which behaves like one monitor for the whole map.
+ * <p>
+ * Every region doubles as a sequence lock for readers: a reader
+ * takes a stamp, reads without locking and validates the stamp
+ * afterwards, retrying if a writer got in between. Readers
+ * therefore never block writers, and writers only pay for the
+ * regions they actually change. The locks are not reentrant.
+ */
+public class RegionLocks {
+
+	private final int tileSize;
+	private final int regionsPerRow;
+	private final StampedLock[] locks;
+
+	public RegionLocks(int width, int height, int tileSize) {
+		if (tileSize <= 0 || (tileSize >= width && tileSize >= height))
+			tileSize = Math.max(width, height);
+
+		this.tileSize = tileSize;
+		this.regionsPerRow = (width + tileSize - 1) / tileSize;
+		int regionsPerColumn = (height + tileSize - 1) / tileSize;
+
+		locks = new StampedLock[regionsPerRow * regionsPerColumn];
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new StampedLock();
+	}
+
+	/**
+	 * @return the region the cell belongs to.
+	 */
+	public int regionOf(int x, int y) {
+		return (y / tileSize) * regionsPerRow + x / tileSize;
+	}
+
+	/**
+	 * @return the number of regions.
+	 */
+	public int size() {
+		return locks.length;
+	}
+
+	public void lock(int region) {
+		locks[region].writeLock();
+	}
+
+	public void unlock(int region) {
+		locks[region].tryUnlockWrite();
+	}
+
+	/**
+	 * Start an optimistic read of a region.
+	 *
+	 * @return a stamp to validate after reading, or 0 if
+	 * the region is being written to at the moment.
+	 */
+	public long startRead(int region) {
+		return locks[region].tryOptimisticRead();
+	}
+
+	/**
+	 * @return whether the region has not been written to since
+	 * the stamp was taken, meaning what was read is consistent.
+	 */
+	public boolean validate(int region, long stamp) {
+		return stamp != 0 && locks[region].validate(stamp);
+	}
+
+	/**
+	 * Lock two regions in a fixed order. Passing the
+	 * same region twice only locks it once.
+	 */
+	public void lock(int first, int second) {
+		if (first == second) {
+			lock(first);
+		} else {
+			lock(Math.min(first, second));
+			lock(Math.max(first, second));
+		}
+	}
+
+	public void unlock(int first, int second) {
+		unlock(first);
+		if (first != second)
+			unlock(second);
+	}
+
+	/**
+	 * Lock every region, in ascending order.
+	 */
+	public void lockAll() {
+		for (StampedLock lock : locks)
+			lock.writeLock();
+	}
+
+	public void unlockAll() {
+		for (int i = locks.length - 1; i >= 0; i--)
+			locks[i].tryUnlockWrite();
+	}
+}
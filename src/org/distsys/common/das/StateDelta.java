@@ -0,0 +1,289 @@
+package org.distsys.common.das;
+
+import org.distsys.common.das.units.Unit.UnitType;
+import org.distsys.common.messages.Message;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes to a battlefield between two state versions.
+ * It holds the full state of every unit that was added or
+ * changed, and the ids of the units that were removed. A
+ * receiver at the base version reaches the new version by
+ * applying it, see {@link BattleField#applyDelta(StateDelta)}.
+ * <p>
+ * A snapshot is a delta that holds every unit on the
+ * battlefield, which any receiver can apply regardless of
+ * its own version.
+ * <p>
+ * The messages that were committed to produce the changes
+ * travel along, so receivers can pass them on to their clients.
+ */
+public final class StateDelta implements Serializable {
+	private static final long serialVersionUID = 2101487066284547212L;
+
+	private final long baseVersion;
+	private final long version;
+	private final boolean snapshot;
+
+	/* The last unit id handed out, so that whoever becomes master continues from it */
+	private int lastUnitID;
+
+	/* The term of the master that committed it, see org.distsys.server.LeaderElection */
+	private long term;
+
+	/* Changed units, in parallel arrays */
+	private int count;
+	private int[] unitIDs = new int[4];
+	private byte[] types = new byte[4];
+	private int[] xs = new int[4];
+	private int[] ys = new int[4];
+	private int[] hitPoints = new int[4];
+	private int[] maxHitPoints = new int[4];
+	private int[] attackPoints = new int[4];
+
+	/* Removed units */
+	private int removedCount;
+	private int[] removedIDs = new int[4];
+
+	private List<Message> messages = Collections.emptyList();
+
+	/* Bytes needed to write a changed unit */
+	private static final int UNIT_RECORD_SIZE = 4 + 1 + 5 * 4;
+
+	public StateDelta(long baseVersion, long version, boolean snapshot) {
+		this.baseVersion = baseVersion;
+		this.version = version;
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Add the new state of a unit.
+	 */
+	public void addUnit(int unitID, UnitType type, int x, int y, int hp, int maxHp, int attack) {
+		if (count == unitIDs.length) {
+			int capacity = count * 2;
+			unitIDs = Arrays.copyOf(unitIDs, capacity);
+			types = Arrays.copyOf(types, capacity);
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			hitPoints = Arrays.copyOf(hitPoints, capacity);
+			maxHitPoints = Arrays.copyOf(maxHitPoints, capacity);
+			attackPoints = Arrays.copyOf(attackPoints, capacity);
+		}
+		unitIDs[count] = unitID;
+		types[count] = (byte) type.ordinal();
+		xs[count] = x;
+		ys[count] = y;
+		hitPoints[count] = hp;
+		maxHitPoints[count] = maxHp;
+		attackPoints[count] = attack;
+		count++;
+	}
+
+	/**
+	 * Mark a unit as removed from the battlefield.
+	 */
+	public void addRemoval(int unitID) {
+		if (removedCount == removedIDs.length)
+			removedIDs = Arrays.copyOf(removedIDs, removedCount * 2);
+		removedIDs[removedCount++] = unitID;
+	}
+
+	/**
+	 * Merge a sequence of consecutive deltas into one, that takes a
+	 * receiver from the base version of the first delta straight to
+	 * the version of the last one. The messages are left out.
+	 */
+	public static StateDelta compose(List<StateDelta> deltas) {
+		StateDelta first = deltas.get(0);
+		StateDelta last = deltas.get(deltas.size() - 1);
+
+		Map<Integer, int[]> changed = new LinkedHashMap<>();
+		Set<Integer> removed = new LinkedHashSet<>();
+		int lastUnitID = 0;
+		for (StateDelta delta : deltas) {
+			for (int i = 0; i < delta.removedCount; i++) {
+				changed.remove(delta.removedIDs[i]);
+				removed.add(delta.removedIDs[i]);
+			}
+			for (int i = 0; i < delta.count; i++) {
+				removed.remove(delta.unitIDs[i]);
+				changed.put(delta.unitIDs[i], new int[]{delta.types[i], delta.xs[i], delta.ys[i],
+						delta.hitPoints[i], delta.maxHitPoints[i], delta.attackPoints[i]});
+			}
+			lastUnitID = Math.max(lastUnitID, delta.lastUnitID);
+		}
+
+		StateDelta result = new StateDelta(first.baseVersion, last.version, false);
+		for (int unitID : removed)
+			result.addRemoval(unitID);
+		for (Map.Entry<Integer, int[]> entry : changed.entrySet()) {
+			int[] u = entry.getValue();
+			result.addUnit(entry.getKey(), UnitType.values()[u[0]], u[1], u[2], u[3], u[4], u[5]);
+		}
+		result.lastUnitID = lastUnitID;
+		return result;
+	}
+
+	/**
+	 * @return the number of bytes {@link #write(ByteBuffer)} needs.
+	 */
+	public int getEncodedSize() {
+		return 8 + 8 + 8 + 1 + 4 + 4 + count * UNIT_RECORD_SIZE + 4 + removedCount * 4;
+	}
+
+	/**
+	 * Write the changes in a compact binary form. The messages
+	 * are not written, only the resulting state.
+	 */
+	public void write(ByteBuffer buffer) {
+		buffer.putLong(baseVersion);
+		buffer.putLong(version);
+		buffer.putLong(term);
+		buffer.put((byte) (snapshot ? 1 : 0));
+		buffer.putInt(lastUnitID);
+		buffer.putInt(count);
+		for (int i = 0; i < count; i++) {
+			buffer.putInt(unitIDs[i]);
+			buffer.put(types[i]);
+			buffer.putInt(xs[i]);
+			buffer.putInt(ys[i]);
+			buffer.putInt(hitPoints[i]);
+			buffer.putInt(maxHitPoints[i]);
+			buffer.putInt(attackPoints[i]);
+		}
+		buffer.putInt(removedCount);
+		for (int i = 0; i < removedCount; i++)
+			buffer.putInt(removedIDs[i]);
+	}
+
+	/**
+	 * Read changes written by {@link #write(ByteBuffer)}.
+	 */
+	public static StateDelta read(ByteBuffer buffer) {
+		long baseVersion = buffer.getLong();
+		long version = buffer.getLong();
+		long term = buffer.getLong();
+		StateDelta delta = new StateDelta(baseVersion, version, buffer.get() != 0);
+		delta.term = term;
+		delta.lastUnitID = buffer.getInt();
+		int count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			int unitID = buffer.getInt();
+			UnitType type = UnitType.values()[buffer.get()];
+			delta.addUnit(unitID, type, buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+		}
+		int removedCount = buffer.getInt();
+		for (int i = 0; i < removedCount; i++)
+			delta.addRemoval(buffer.getInt());
+		return delta;
+	}
+
+	public long getBaseVersion() {
+		return baseVersion;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return whether this delta holds the complete battlefield.
+	 */
+	public boolean isSnapshot() {
+		return snapshot;
+	}
+
+	public int getLastUnitID() {
+		return lastUnitID;
+	}
+
+	public void setLastUnitID(int lastUnitID) {
+		this.lastUnitID = lastUnitID;
+	}
+
+	/**
+	 * @return the term of the master that committed it. The log keeps
+	 * it, so a server knows the term of its last commit after a restart.
+	 */
+	public long getTerm() {
+		return term;
+	}
+
+	public void setTerm(long term) {
+		this.term = term;
+	}
+
+	/**
+	 * @return the number of changed units.
+	 */
+	public int getUnitCount() {
+		return count;
+	}
+
+	public int getUnitID(int i) {
+		return unitIDs[i];
+	}
+
+	public UnitType getType(int i) {
+		return UnitType.values()[types[i]];
+	}
+
+	public int getX(int i) {
+		return xs[i];
+	}
+
+	public int getY(int i) {
+		return ys[i];
+	}
+
+	public int getHitPoints(int i) {
+		return hitPoints[i];
+	}
+
+	public int getMaxHitPoints(int i) {
+		return maxHitPoints[i];
+	}
+
+	public int getAttackPoints(int i) {
+		return attackPoints[i];
+	}
+
+	/**
+	 * @return the number of removed units.
+	 */
+	public int getRemovedCount() {
+		return removedCount;
+	}
+
+	public int getRemovedID(int i) {
+		return removedIDs[i];
+	}
+
+	/**
+	 * @return the messages that were committed to produce this delta.
+	 */
+	public List<Message> getMessages() {
+		return messages;
+	}
+
+	public void setMessages(List<Message> messages) {
+		this.messages = new ArrayList<>(messages);
+	}
+
+	@Override
+	public String toString() {
+		return (snapshot ? "snapshot " : "delta " + baseVersion + "->") + version
+				+ " (" + count + " changed, " + removedCount + " removed)";
+	}
+}
@@ -0,0 +1,270 @@
+package org.distsys.common.das;
+
+import org.distsys.common.das.units.Unit.UnitType;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays storage for the units on a battlefield.
+ * Every unit occupies a dense slot and its properties are kept
+ * in parallel primitive arrays indexed by that slot, so the
+ * heap holds a handful of flat arrays instead of one object
+ * per unit.
+ * <p>
+ * Freed slots are chained in a free-list, which makes both
+ * adding and removing a unit O(1). Unit ids are mapped to
+ * their slot through a dense array, since ids are handed out
+ * sequentially by the battlefield.
+ * <p>
+ * This class is not thread-safe, the owning battlefield is
+ * responsible for synchronization. Since growing the table
+ * replaces its arrays, callers that access slots concurrently
+ * should make sure {@link #canAdd(int)} holds before adding,
+ * and grow a copy of the table through {@link #grownFor(int)}
+ * instead, so readers of the table never see its arrays change.
+ */
+public class UnitTable implements Serializable {
+	private static final long serialVersionUID = -2618317415052290641L;
+
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int NO_SLOT = -1;
+
+	/* Per-slot unit properties, an id of 0 marks a free slot */
+	private int[] ids;
+	private byte[] types;
+	private int[] xs;
+	private int[] ys;
+	private int[] hitPoints;
+	private int[] maxHitPoints;
+	private int[] attackPoints;
+
+	/* Links of the free-list, terminated by NO_SLOT */
+	private int[] nextFree;
+	private int freeHead;
+
+	/* Every slot below this index has been handed out at least once */
+	private int highWater;
+	private int size;
+
+	/* Maps a unit id onto its slot, NO_SLOT if the unit is not present */
+	private int[] slotById;
+
+	public UnitTable() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public UnitTable(int capacity) {
+		capacity = Math.max(1, capacity);
+		ids = new int[capacity];
+		types = new byte[capacity];
+		xs = new int[capacity];
+		ys = new int[capacity];
+		hitPoints = new int[capacity];
+		maxHitPoints = new int[capacity];
+		attackPoints = new int[capacity];
+		nextFree = new int[capacity];
+		slotById = new int[capacity];
+		Arrays.fill(slotById, NO_SLOT);
+		freeHead = NO_SLOT;
+	}
+
+	/**
+	 * Store a new unit in a free slot.
+	 *
+	 * @return the slot the unit was stored in.
+	 */
+	public int add(int unitID, UnitType type, int x, int y, int hp, int maxHp, int attack) {
+		assert unitID > 0 : "Unit ids start at 1";
+		assert slotOf(unitID) == NO_SLOT : "Unit " + unitID + " is already stored";
+
+		int slot;
+		if (freeHead != NO_SLOT) {
+			slot = freeHead;
+			freeHead = nextFree[slot];
+		} else {
+			if (highWater == ids.length)
+				grow(ids.length * 2);
+			slot = highWater++;
+		}
+
+		ids[slot] = unitID;
+		types[slot] = (byte) type.ordinal();
+		xs[slot] = x;
+		ys[slot] = y;
+		hitPoints[slot] = hp;
+		maxHitPoints[slot] = maxHp;
+		attackPoints[slot] = attack;
+
+		if (unitID >= slotById.length)
+			growIndex(unitID);
+		slotById[unitID] = slot;
+		size++;
+
+		return slot;
+	}
+
+	/**
+	 * @return whether a unit with the given id can be added
+	 * without growing the table.
+	 */
+	public boolean canAdd(int unitID) {
+		return unitID < slotById.length && (freeHead != NO_SLOT || highWater < ids.length);
+	}
+
+	/**
+	 * Grow the table so that a unit with the given id, and a
+	 * number of units after it, can be added without growing.
+	 */
+	public void ensureCapacity(int unitID) {
+		if (freeHead == NO_SLOT && highWater == ids.length)
+			grow(ids.length * 2);
+		if (unitID >= slotById.length)
+			growIndex(unitID);
+	}
+
+	/**
+	 * @return a copy of this table that can take a unit with the given
+	 * id without growing, leaving this table as it is.
+	 */
+	public UnitTable grownFor(int unitID) {
+		UnitTable grown = new UnitTable(1);
+		grown.copyFrom(this);
+		grown.ensureCapacity(unitID);
+		return grown;
+	}
+
+	/**
+	 * Release a slot, putting it on the free-list.
+	 */
+	public void remove(int slot) {
+		assert ids[slot] != 0 : "Slot " + slot + " is already free";
+
+		slotById[ids[slot]] = NO_SLOT;
+		ids[slot] = 0;
+		nextFree[slot] = freeHead;
+		freeHead = slot;
+		size--;
+	}
+
+	/**
+	 * @return the slot of the unit with the given id, or -1
+	 * if no such unit is stored.
+	 */
+	public int slotOf(int unitID) {
+		if (unitID <= 0 || unitID >= slotById.length)
+			return NO_SLOT;
+		return slotById[unitID];
+	}
+
+	/**
+	 * Adjust the hitpoints of the unit in a slot, capped at its
+	 * maximum. Units that are already dead are left untouched.
+	 *
+	 * @return the new number of hitpoints.
+	 */
+	public int adjustHitPoints(int slot, int modifier) {
+		if (hitPoints[slot] <= 0)
+			return hitPoints[slot];
+
+		hitPoints[slot] = Math.min(hitPoints[slot] + modifier, maxHitPoints[slot]);
+		return hitPoints[slot];
+	}
+
+	public void setPosition(int slot, int x, int y) {
+		xs[slot] = x;
+		ys[slot] = y;
+	}
+
+	public int getUnitID(int slot) {
+		return ids[slot];
+	}
+
+	public UnitType getType(int slot) {
+		return UnitType.values()[types[slot]];
+	}
+
+	public int getX(int slot) {
+		return xs[slot];
+	}
+
+	public int getY(int slot) {
+		return ys[slot];
+	}
+
+	public int getHitPoints(int slot) {
+		return hitPoints[slot];
+	}
+
+	public int getMaxHitPoints(int slot) {
+		return maxHitPoints[slot];
+	}
+
+	public int getAttackPoints(int slot) {
+		return attackPoints[slot];
+	}
+
+	/**
+	 * @return whether a unit is stored in the slot.
+	 */
+	public boolean isOccupied(int slot) {
+		return slot >= 0 && slot < highWater && ids[slot] != 0;
+	}
+
+	/**
+	 * @return an exclusive upper bound of the occupied slots,
+	 * useful to iterate over all units.
+	 */
+	public int getHighWater() {
+		return highWater;
+	}
+
+	/**
+	 * @return the number of slots, every slot below it can be read.
+	 */
+	public int getCapacity() {
+		return ids.length;
+	}
+
+	/**
+	 * @return the number of units stored.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Replace the contents of this table by those of another one.
+	 */
+	public void copyFrom(UnitTable other) {
+		ids = other.ids.clone();
+		types = other.types.clone();
+		xs = other.xs.clone();
+		ys = other.ys.clone();
+		hitPoints = other.hitPoints.clone();
+		maxHitPoints = other.maxHitPoints.clone();
+		attackPoints = other.attackPoints.clone();
+		nextFree = other.nextFree.clone();
+		slotById = other.slotById.clone();
+		freeHead = other.freeHead;
+		highWater = other.highWater;
+		size = other.size;
+	}
+
+	private void growIndex(int unitID) {
+		int oldLength = slotById.length;
+		slotById = Arrays.copyOf(slotById, Math.max(unitID + 1, oldLength * 2));
+		Arrays.fill(slotById, oldLength, slotById.length, NO_SLOT);
+	}
+
+	private void grow(int capacity) {
+		ids = Arrays.copyOf(ids, capacity);
+		types = Arrays.copyOf(types, capacity);
+		xs = Arrays.copyOf(xs, capacity);
+		ys = Arrays.copyOf(ys, capacity);
+		hitPoints = Arrays.copyOf(hitPoints, capacity);
+		maxHitPoints = Arrays.copyOf(maxHitPoints, capacity);
+		attackPoints = Arrays.copyOf(attackPoints, capacity);
+		nextFree = Arrays.copyOf(nextFree, capacity);
+	}
+}
@@ -2,9 +2,8 @@ package org.distsys.common.das.presentation;
 
 import org.distsys.common.das.BattleField;
 import org.distsys.common.das.GameState;
-import org.distsys.common.das.units.Dragon;
-import org.distsys.common.das.units.Player;
-import org.distsys.common.das.units.Unit;
+import org.distsys.common.das.units.Unit.UnitType;
+import org.distsys.common.das.units.UnitState;
 
 import javax.swing.*;
 import java.awt.*;
@@ -60,12 +59,11 @@ public class BattleFieldViewer extends JPanel implements Runnable {
 	 * for dragons and a blue one for players.
 	 */
 	public void paint(Graphics g) {
-		Unit u;
-		double x = 0, y = 0;
-		double xRatio = (double)this.getWidth() / (double)BattleField.MAP_WIDTH;
-		double yRatio = (double)this.getHeight() / (double)BattleField.MAP_HEIGHT;
-		double filler;
+		double x, y;
 		BattleField bf = BattleField.getBattleField();
+		double xRatio = (double)this.getWidth() / (double)bf.getWidth();
+		double yRatio = (double)this.getHeight() / (double)bf.getHeight();
+		double filler;
 
 		/* Possibly adjust the double buffer */
 		if(bufferWidth != getSize().width
@@ -79,33 +77,34 @@ public class BattleFieldViewer extends JPanel implements Runnable {
 		doubleBufferGraphics.clearRect(0, 0, bufferWidth, bufferHeight);
 		doubleBufferGraphics.setColor(Color.BLACK);
 
-		/* Draw the field, rectangle-wise */
-		for(int i = 0; i < BattleField.MAP_WIDTH; i++, x += xRatio, y = 0)
-			for(int j = 0; j < BattleField.MAP_HEIGHT; j++, y += yRatio) {
-				u = bf.getUnit(i, j);
-				if (u == null) continue; // Nothing to draw in this sector
-
-				if (u instanceof Dragon)
-					doubleBufferGraphics.setColor(Color.RED);
-				else if (u instanceof Player)
-					doubleBufferGraphics.setColor(Color.BLUE);
-
-				/* Fill the unit color */
-				doubleBufferGraphics.fillRect((int)x + 1, (int)y + 1, (int)xRatio - 1, (int)yRatio - 1);
-
-				/* Draw healthbar */
-				doubleBufferGraphics.setColor(Color.GREEN);
-				filler = yRatio * u.getHitPoints() / (double)u.getMaxHitPoints();
-				doubleBufferGraphics.fillRect((int)(x + 0.75 * xRatio), (int)(y + 1 + yRatio - filler), (int)xRatio / 4, (int)(filler));
-
-				/* Draw the identifier */
-				doubleBufferGraphics.setColor(Color.WHITE);
-				doubleBufferGraphics.drawString("" + u.getUnitID(), (int)x, (int)y + 15);
-				doubleBufferGraphics.setColor(Color.BLACK);
-
-				/* Draw a rectangle around the unit */
-				doubleBufferGraphics.drawRect((int)x, (int)y, (int)xRatio, (int)yRatio);
-			}
+		/* Draw the units, rectangle-wise. Only the units are visited,
+		 * since the map itself can be far larger than the screen.
+		 */
+		for(UnitState u : bf.getUnits()) {
+			x = u.getX() * xRatio;
+			y = u.getY() * yRatio;
+
+			if (u.getType() == UnitType.dragon)
+				doubleBufferGraphics.setColor(Color.RED);
+			else if (u.getType() == UnitType.player)
+				doubleBufferGraphics.setColor(Color.BLUE);
+
+			/* Fill the unit color */
+			doubleBufferGraphics.fillRect((int)x + 1, (int)y + 1, (int)xRatio - 1, (int)yRatio - 1);
+
+			/* Draw healthbar */
+			doubleBufferGraphics.setColor(Color.GREEN);
+			filler = yRatio * u.getHitPoints() / (double)u.getMaxHitPoints();
+			doubleBufferGraphics.fillRect((int)(x + 0.75 * xRatio), (int)(y + 1 + yRatio - filler), (int)xRatio / 4, (int)(filler));
+
+			/* Draw the identifier */
+			doubleBufferGraphics.setColor(Color.WHITE);
+			doubleBufferGraphics.drawString("" + u.getUnitID(), (int)x, (int)y + 15);
+			doubleBufferGraphics.setColor(Color.BLACK);
+
+			/* Draw a rectangle around the unit */
+			doubleBufferGraphics.drawRect((int)x, (int)y, (int)xRatio, (int)yRatio);
+		}
 
 		/* Flip the double buffer */
 		g.drawImage(doubleBufferImage, 0, 0, this);
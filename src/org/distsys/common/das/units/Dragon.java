@@ -1,7 +1,8 @@
 package org.distsys.common.das.units;
 
-import org.distsys.common.das.BattleField;
+import org.distsys.common.concurrent.UnitThreads;
 import org.distsys.common.das.GameState;
+import org.distsys.common.das.Neighbourhood;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -55,8 +56,7 @@ public class Dragon extends Unit implements Runnable, Serializable {
 
 		/* Awaken the dragon */
 		//new Thread(this).start();
-		runnerThread = new Thread(this);
-		runnerThread.start();
+		runnerThread = UnitThreads.start("dragon-" + getUnitID(), this);
 	}
 
 	/**
@@ -82,19 +82,20 @@ public class Dragon extends Unit implements Runnable, Serializable {
 				if (getHitPoints() <= 0)
 					break;
 
-				// Decide what players are near
-				if (getY() > 0)
-					if ( getType( getX(), getY() - 1 ) == UnitType.player )
-						adjacentPlayers.add(Direction.up);
-				if (getY() < BattleField.MAP_WIDTH - 1)
-					if ( getType( getX(), getY() + 1 ) == UnitType.player )
-						adjacentPlayers.add(Direction.down);
-				if (getX() > 0)
-					if ( getType( getX() - 1, getY() ) == UnitType.player )
-						adjacentPlayers.add(Direction.left);
-				if (getX() < BattleField.MAP_WIDTH - 1)
-					if ( getType( getX() + 1, getY() ) == UnitType.player )
-						adjacentPlayers.add(Direction.right);
+				// Decide what players are near, looking at all adjacent squares at once
+				Neighbourhood neighbourhood = getNeighbourhood(1);
+				if (neighbourhood == null)
+					continue;
+
+				adjacentPlayers.clear();
+				if (neighbourhood.getType( getX(), getY() - 1 ) == UnitType.player)
+					adjacentPlayers.add(Direction.up);
+				if (neighbourhood.getType( getX(), getY() + 1 ) == UnitType.player)
+					adjacentPlayers.add(Direction.down);
+				if (neighbourhood.getType( getX() - 1, getY() ) == UnitType.player)
+					adjacentPlayers.add(Direction.left);
+				if (neighbourhood.getType( getX() + 1, getY() ) == UnitType.player)
+					adjacentPlayers.add(Direction.right);
 				
 				// Pick a random player to attack
 				if (adjacentPlayers.size() == 0)
@@ -122,9 +123,9 @@ public class Dragon extends Unit implements Runnable, Serializable {
 			}
 		}
 		try {
-			slaveSocket.getSocket().close();
-			masterSocket.getSocket().close();
-			matchMakingSocket.getSocket().close();
+			slaveSocket.close();
+			masterSocket.close();
+			matchMakingSocket.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
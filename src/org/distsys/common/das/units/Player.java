@@ -1,7 +1,9 @@
 package org.distsys.common.das.units;
 
+import org.distsys.common.concurrent.UnitThreads;
 import org.distsys.common.das.BattleField;
 import org.distsys.common.das.GameState;
+import org.distsys.common.das.Neighbourhood;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -51,8 +53,7 @@ public class Player extends Unit implements Runnable, Serializable {
 
 		/* Create a new player thread */
 		//new Thread(this).start();
-		runnerThread = new Thread(this);
-		runnerThread.start();
+		runnerThread = UnitThreads.start("player-" + getUnitID(), this);
 	}
 
 	/**
@@ -96,7 +97,7 @@ public class Player extends Unit implements Runnable, Serializable {
 						targetY = this.getY() - 1;
 						break;
 					case down:
-						if (this.getY() >= BattleField.MAP_HEIGHT - 1)
+						if (this.getY() >= BattleField.getBattleField().getHeight() - 1)
 							// The player was at the edge of the map, so he can't move south and there are no units there
 							continue;
 
@@ -112,7 +113,7 @@ public class Player extends Unit implements Runnable, Serializable {
 						targetY = this.getY();
 						break;
 					case right:
-						if (this.getX() >= BattleField.MAP_WIDTH - 1)
+						if (this.getX() >= BattleField.getBattleField().getWidth() - 1)
 							// The player was at the edge of the map, so he can't move east and there are no units there
 							continue;
 
@@ -121,11 +122,11 @@ public class Player extends Unit implements Runnable, Serializable {
 						break;
 				}
 
-				// Get what unit lies in the target square
-				adjacentUnitType = this.getType(targetX, targetY);
-
-				if(adjacentUnitType == null) continue;
+				// Get what unit lies in the target square, along with its health
+				Neighbourhood neighbourhood = this.getNeighbourhood(1);
+				if(neighbourhood == null) continue;
 
+				adjacentUnitType = neighbourhood.getType(targetX, targetY);
 
 				switch (adjacentUnitType) {
 					case undefined:
@@ -134,11 +135,7 @@ public class Player extends Unit implements Runnable, Serializable {
 						break;
 					case player:
 						// There is a player in the square, attempt a healing
-						Player player = (Player) this.getUnit(targetX, targetY);
-						if(player == null) {
-							break;
-						}
-						if(((double)player.getHitPoints() / (double)player.getMaxHitPoints()) >= 0.5) {
+						if(neighbourhood.getHitPointRatio(targetX, targetY) >= 0.5) {
 							this.healDamage(targetX, targetY, getAttackPoints());
 						}
 						break;
@@ -152,9 +149,9 @@ public class Player extends Unit implements Runnable, Serializable {
 			}
 		}
 		try {
-			slaveSocket.getSocket().close();
-			masterSocket.getSocket().close();
-			matchMakingSocket.getSocket().close();
+			slaveSocket.close();
+			masterSocket.close();
+			matchMakingSocket.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -1,18 +1,28 @@
 package org.distsys.common.das.units;
 
 import org.distsys.common.MessageSocket;
+import org.distsys.common.Transport;
+import org.distsys.common.concurrent.UnitThreads;
 import org.distsys.common.das.BattleField;
 import org.distsys.common.das.GameState;
 import org.distsys.common.das.IMessageReceivedHandler;
 import org.distsys.common.das.MessageRequest;
+import org.distsys.common.das.Neighbourhood;
 import org.distsys.common.messages.Message;
+import org.distsys.common.messages.Reply;
 
 import java.io.*;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.rmi.RemoteException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Base class for all players whom can
@@ -47,8 +57,29 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 	protected transient MessageSocket matchMakingSocket;
 	protected transient MessageSocket masterSocket;
 
-	// Map messages from their ids
-	private Map<String, Message> messageList;
+	// How long to wait for a reply, in milliseconds
+	private static final long READ_TIMEOUT = 5000;
+	private static final long MOVE_TIMEOUT = 10000;
+	// How often a unit waiting for a reply checks whether the game still runs
+	private static final long STOP_CHECK_INTERVAL = 100;
+	// How many requests a unit can have waiting for a reply
+	private static final int MAX_IN_FLIGHT = Integer.getInteger("das.maxInFlight", 16);
+	// Ends the requests whose reply does not come in time
+	private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread thread = new Thread(r, "unit-request-timeouts");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		TIMEOUTS.setRemoveOnCancelPolicy(true);
+	}
+
+	// The requests waiting for a reply, by the ids of their messages
+	private transient Map<Long, CompletableFuture<Reply>> pending = new ConcurrentHashMap<>();
+	private transient Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+	// The newest version of the battlefield a read was answered at, later reads ask for at least that
+	private transient volatile long lastVersion;
 	// Is used for mapping an unique id to a message sent by this unit
 	private int localMessageCounter = 0;
 
@@ -80,39 +111,36 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 	public Unit(int maxHealth, int attackPoints) {
 		try {
 			synchronized (lock) {
-				matchMakingSocket = new MessageSocket(new Socket(mmServer, 44444));
-				ObjectInputStream mmIn = matchMakingSocket.getObjectInputStream();
-				Map<String, String> servers = (Map<String, String>) mmIn.readObject();
-				matchMakingSocket.getSocket().close();
+				Transport transport = Transport.get();
+				matchMakingSocket = transport.connect(System.getProperty("das.matchmakingHost", mmServer), 44444);
+				Map<String, String> servers = (Map<String, String>) matchMakingSocket.readObject();
+				matchMakingSocket.close();
 				if (servers == null) throw new RemoteException();
 				masterServer = servers.get("master");
-				masterSocket = new MessageSocket(new Socket(servers.get("master"), 33333));
-				slaveSocket = new MessageSocket(new Socket(servers.get("slave"), 33333));
+				masterSocket = transport.connect(servers.get("master"), 33333);
+				slaveSocket = transport.connect(servers.get("slave"), 33333);
 
 			}
 
-			ObjectInputStream in = masterSocket.getObjectInputStream();
-			Message message = (Message) in.readObject();
-			String id = (String) message.get("id");
-			unitID = Integer.parseInt(id.substring(1));
+			unitID = masterSocket.readMessage().getAssignedUnitID();
 
-			PrintWriter writer = new PrintWriter(slaveSocket.getSocket().getOutputStream());
-			writer.println("D" + unitID);
-			writer.flush();
+			// Tell the slave who we are, so it passes us the commits
+			slaveSocket.writeMessage(Message.assignUnitID(unitID));
 
-			new Thread(() -> {
-				ObjectInputStream ois = null;
-				ois = slaveSocket.getObjectInputStream();
+			UnitThreads.start("unit-" + unitID + "-reader", () -> {
 				Message msg;
 //				BattleField battleField;
 				while (true) {
 					try {
-						msg = (Message) ois.readObject();
-						processMessage(msg);
+						msg = slaveSocket.readMessage();
+						if (msg.getRequest() == MessageRequest.reply)
+							receiveReply(msg.getReply());
+						else
+							processMessage(msg);
 //						battleField = (BattleField) in.readObject();
 //						BattleField.getBattleField().updateState(battleField);
 					} catch (SocketTimeoutException e) {
-					} catch (ClassNotFoundException | IOException e) {
+					} catch (IOException e) {
 						break;
 					}
 //					try {
@@ -122,17 +150,29 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 //					}
 				}
 				try {
-					ois.close();
+					slaveSocket.close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
-			}).start();
+			});
+
+			// The master only tells us about writes that were not committed
+			UnitThreads.start("unit-" + unitID + "-aborts", () -> {
+				while (true) {
+					try {
+						Message msg = masterSocket.readMessage();
+						if (msg.getRequest() == MessageRequest.aborted)
+							receiveAbort(msg.getId());
+					} catch (SocketTimeoutException e) {
+					} catch (IOException e) {
+						break;
+					}
+				}
+			});
 		} catch (IOException | ClassNotFoundException e) {
 			e.printStackTrace();
 		}
 
-		messageList = new ConcurrentHashMap<>();
-
 		// Initialize the max health and health
 		hitPoints = maxHitPoints = maxHealth;
 
@@ -168,17 +208,9 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 		/* Create a new message, notifying the board
 		 * that a unit has been dealt damage.
 		 */
-		String id;
 		Message damageMessage;
 		synchronized (this) {
-			id = getNewMessageId();
-
-			damageMessage = new Message();
-			damageMessage.put("request", MessageRequest.dealDamage);
-			damageMessage.put("x", x);
-			damageMessage.put("y", y);
-			damageMessage.put("damage", damage);
-			damageMessage.put("id", id);
+			damageMessage = Message.dealDamage(getNewMessageId(), x, y, damage);
 		}
 
 		try {
@@ -192,17 +224,9 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 		/* Create a new message, notifying the board
 		 * that a unit has been healed.
 		 */
-		String id;
 		Message healMessage;
 		synchronized (this) {
-			id = getNewMessageId();
-
-			healMessage = new Message();
-			healMessage.put("request", MessageRequest.healDamage);
-			healMessage.put("x", x);
-			healMessage.put("y", y);
-			healMessage.put("healed", healed);
-			healMessage.put("id", id);
+			healMessage = Message.healDamage(getNewMessageId(), x, y, healed);
 		}
 
 		try {
@@ -273,30 +297,11 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 	 * @return true iff the unit could spawn at the location on the battlefield
 	 */
 	protected boolean spawn(int x, int y) {
-		/* Create a new message, notifying the board
-		 * the unit has actually spawned at the
-		 * designated position. 
+		/* Send a message notifying the board the unit has
+		 * actually spawned at the designated position, and
+		 * wait for the unit to be placed.
 		 */
-		String id = getNewMessageId();
-		Message spawnMessage = new Message();
-		spawnMessage.put("request", MessageRequest.spawnUnit);
-		spawnMessage.put("x", x);
-		spawnMessage.put("y", y);
-		spawnMessage.put("unit", this);
-		spawnMessage.put("id", id);
-
-		// Send a spawn message
-		try {
-			sendMessage(spawnMessage);
-//        } catch (IDNotAssignedException e) {
-//            System.err.println("No server found while spawning unit at location (" + x + ", " + y + ")");
-//            return false;
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// Wait for the unit to be placed
-		getUnit(x, y);
+		await(spawnAsync(x, y));
 
 		return true;
 	}
@@ -309,165 +314,229 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 	 * @return UnitType: the indicated square contains a player, a dragon or nothing.
 	 */
 	protected UnitType getType(int x, int y) {
-		Message getMessage = new Message(), result;
-		String id = getNewMessageId();
-		getMessage.put("request", MessageRequest.getType);
-		getMessage.put("x", x);
-		getMessage.put("y", y);
-		getMessage.put("id", id);
-		getMessage.put("origin", unitID);
-
-		// Send the getUnit message
+		UnitType type = await(getTypeAsync(x, y));
+		if (type == null && !GameState.getRunningState()) // Could happen if the game window had closed
+			return UnitType.undefined;
+		return type;
+	}
+
+	protected UnitState getUnit(int x, int y) {
+		return await(getUnitAsync(x, y));
+	}
+
+	/**
+	 * Returns the types, ids and hitpoint ratios of all squares within
+	 * a radius around this unit, using a single request.
+	 *
+	 * @param radius: the number of squares to look around in each direction
+	 * @return Neighbourhood: the squares around the unit, or null if no reply came.
+	 */
+	protected Neighbourhood getNeighbourhood(int radius) {
+		return await(getNeighbourhoodAsync(radius));
+	}
+
+	protected void removeUnit(int x, int y) {
+		Message removeMessage = Message.removeUnit(getNewMessageId(), x, y);
+
+		// Send the removeUnit message
 		try {
-			sendMessage(getMessage);
+			sendMessage(removeMessage);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		BattleField.getBattleField().processMessage(removeMessage);
+	}
 
-		int i = 0;
-		// Wait for the reply
-		while (!messageList.containsKey(id)) {
-			try {
-				Thread.sleep(50);
-			} catch (InterruptedException e) {
-			}
+	protected void moveUnit(int x, int y) {
+		// Wait until the move is committed
+		await(moveUnitAsync(x, y));
+	}
 
-			if (i++ == 100) break;
+	/* Requests that do not wait for their reply, so a unit can have several in flight.
+	 * Replies complete the futures on the thread that reads from the server, so
+	 * callbacks should not block. Writes go to the master and are applied in the
+	 * order they were sent in. Reads are answered by the server the unit reads
+	 * commits from, so a read sent after a write completed sees that write.
+	 */
 
-			// Quit if the game window has closed
-			if (!GameState.getRunningState())
-				return UnitType.undefined;
-		}
+	/**
+	 * Spawn and complete once the unit has been placed, see {@link #spawn(int, int)}.
+	 *
+	 * @return the unit as placed, or null if no reply came.
+	 */
+	protected CompletableFuture<UnitState> spawnAsync(int x, int y) {
+		BattleField.getBattleField().registerLocalUnit(this);
+		Message spawnMessage = Message.spawnUnit(getNewMessageId(), getState(), x, y);
 
-		if (i >= 100) {
-			return null;
-		}
+		// Read the unit back once the spawn is committed, off the thread that completes the spawn
+		return request(spawnMessage, 0).thenComposeAsync(reply -> reply == null
+				? CompletableFuture.completedFuture(null) : getUnitAsync(x, y));
+	}
 
-		result = messageList.get(id);
-		if (result == null) // Could happen if the game window had closed
-			return UnitType.undefined;
-		messageList.remove(id);
+	/**
+	 * @return completes with the type on a square, or null if no reply came in time.
+	 */
+	protected CompletableFuture<UnitType> getTypeAsync(int x, int y) {
+		return request(Message.getType(getNewMessageId(), x, y, lastVersion), READ_TIMEOUT)
+				.thenApply(reply -> reply == null ? null : reply.getType());
+	}
 
-		if (result.get("type") == null) {
-			System.out.println("asdf");
-		}
+	/**
+	 * @return completes with the unit on a square, or null if the square is empty.
+	 * Waits for the reply as long as the game runs.
+	 */
+	protected CompletableFuture<UnitState> getUnitAsync(int x, int y) {
+		return request(Message.getUnit(getNewMessageId(), x, y, lastVersion), 0)
+				.thenApply(reply -> reply == null ? null : reply.getUnit());
+	}
 
-		return (UnitType) result.get("type");
+	/**
+	 * @return completes with the squares around the unit, or null if no reply came in time.
+	 */
+	protected CompletableFuture<Neighbourhood> getNeighbourhoodAsync(int radius) {
+		return request(Message.getNeighbourhood(getNewMessageId(), this.getX(), this.getY(), radius, lastVersion), READ_TIMEOUT)
+				.thenApply(reply -> reply == null ? null : reply.getNeighbourhood());
 	}
 
-	protected Unit getUnit(int x, int y) {
-		Message getMessage = new Message(), result;
-		String id = getNewMessageId();
-		getMessage.put("request", MessageRequest.getUnit);
-		getMessage.put("x", x);
-		getMessage.put("y", y);
-		getMessage.put("id", id);
-		getMessage.put("origin", unitID);
+	/**
+	 * @return completes with true once the move is committed, or false if no reply came in time.
+	 */
+	protected CompletableFuture<Boolean> moveUnitAsync(int x, int y) {
+		return request(Message.moveUnit(getNewMessageId(), x, y), MOVE_TIMEOUT)
+				.thenApply(reply -> reply != null);
+	}
 
-		// Send the getUnit message
+	/**
+	 * Send a message that the battlefield replies to. Reads are
+	 * answered by the server the unit reads commits from, writes are
+	 * done once they come back from it committed. At most
+	 * das.maxInFlight of them wait for a reply at the same time,
+	 * a unit that sends more waits until a reply comes in. A reply
+	 * that arrives after the timeout is dropped.
+	 *
+	 * @param message the message to send.
+	 * @param timeout how long to wait for the reply in milliseconds,
+	 *                or 0 to wait until the unit disconnects.
+	 * @return completes with the reply, or null if none came in time,
+	 * the message could not be sent or the unit disconnected.
+	 */
+	private CompletableFuture<Reply> request(Message message, long timeout) {
+		CompletableFuture<Reply> reply = new CompletableFuture<>();
 		try {
-			sendMessage(getMessage);
-		} catch (IOException e) {
-			e.printStackTrace();
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			reply.complete(null);
+			return reply;
 		}
 
-		// Wait for the reply
-		while (!messageList.containsKey(id)) {
-			try {
-				Thread.sleep(50);
-			} catch (InterruptedException e) {
-			}
-
-			// Quit if the game window has closed
-			if (!GameState.getRunningState())
-				return null;
+		long id = message.getId();
+		pending.put(id, reply);
+		if (timeout > 0) {
+			ScheduledFuture<?> timer = TIMEOUTS.schedule(() -> reply.complete(null), timeout, TimeUnit.MILLISECONDS);
+			reply.whenComplete((result, e) -> timer.cancel(false));
 		}
+		reply.whenComplete((result, e) -> {
+			pending.remove(id);
+			inFlight.release();
+		});
 
-		result = messageList.get(id);
-		messageList.remove(id);
-
-		return (Unit) result.get("unit");
-	}
-
-	protected void removeUnit(int x, int y) {
-		Message removeMessage = new Message();
-		String id = getNewMessageId();
-		removeMessage.put("request", MessageRequest.removeUnit);
-		removeMessage.put("x", x);
-		removeMessage.put("y", y);
-		removeMessage.put("id", id);
-
-		// Send the removeUnit message
 		try {
-			sendMessage(removeMessage);
+			sendMessage(message);
 		} catch (IOException e) {
 			e.printStackTrace();
+			reply.complete(null);
 		}
-		BattleField.getBattleField().processMessage(removeMessage);
+		return reply;
 	}
 
-	protected void moveUnit(int x, int y) {
-		Message moveMessage = new Message();
-		String id = getNewMessageId();
-		moveMessage.put("request", MessageRequest.moveUnit);
-		moveMessage.put("x", x);
-		moveMessage.put("y", y);
-		moveMessage.put("id", id);
-		moveMessage.put("unit", this);
-		moveMessage.put("origin", unitID);
-		moveMessage.put("origx", this.getX());
-		moveMessage.put("origy", this.getY());
-
-		// Send the getUnit message
+	/**
+	 * Wait for a request to complete, as long as the game runs.
+	 *
+	 * @return the result, or null if the game stopped first.
+	 */
+	private static <T> T await(CompletableFuture<T> future) {
 		try {
-			sendMessage(moveMessage);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		int i = 0;
-		while (!messageList.containsKey(id)) {
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			// Quit if the game window has closed
+			while (GameState.getRunningState()) {
+				try {
+					return future.get(STOP_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// Check whether the game still runs and wait some more
+				}
 			}
-			if (i++ == 100) break;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-
-		messageList.remove(id);
+		return null;
 	}
 
 	private void sendMessage(Message message) throws IOException {
-		if (masterSocket == null) return;
-		ObjectOutputStream out = masterSocket.getObjectOutputStream();
-		synchronized (out) {
-			out.writeObject(message);
-			out.flush();
-		}
+		MessageSocket socket = message.isRead() ? slaveSocket : masterSocket;
+		if (socket == null) return;
+		socket.writeMessage(message);
 	}
 
-	private String getNewMessageId() {
-		return unitID + "-" + localMessageCounter++;
+	private synchronized long getNewMessageId() {
+		return Message.newId(unitID, localMessageCounter++);
 	}
 
+	/**
+	 * @return the properties of this unit, as sent to the battlefield.
+	 */
+	public UnitState getState() {
+		UnitType type = this instanceof Player ? UnitType.player
+				: this instanceof Dragon ? UnitType.dragon : UnitType.undefined;
+		return new UnitState(unitID, type, x, y, hitPoints, maxHitPoints, attackPoints);
+	}
+
+	/**
+	 * Handle a commit passed on by the server: one of this unit
+	 * itself, or one of another unit nearby, see
+	 * {@link BattleField#applyRemote(Message)}.
+	 */
 	public void processMessage(Message message) {
-		String id = (String) message.get("id");
-		id = id.substring(0, id.indexOf('-'));
-		int unitId = Integer.parseInt(id);
-		if (unitId == this.unitID) {
-			if (message.containsKey("unit"))
-				message.put("unit", this);
-
-			Message reply = BattleField.getBattleField().processMessage(message);
-			if (reply != null)
-				messageList.put((String) reply.get("id"), reply);
+		if (message.getUnitID() != this.unitID) {
+			BattleField.getBattleField().applyRemote(message);
+		} else {
+			Reply reply = BattleField.getBattleField().processMessage(message);
+			// A write that has no reply of its own is done once it comes back committed
+			if (reply == null)
+				reply = new Reply(message.getId());
+			CompletableFuture<Reply> request = pending.remove(reply.getId());
+			if (request != null)
+				request.complete(reply);
 		}
 	}
 
+	/**
+	 * A write was voted down, so the request waiting for it ends without a reply.
+	 */
+	private void receiveAbort(long id) {
+		CompletableFuture<Reply> request = pending.remove(id);
+		if (request != null)
+			request.complete(null);
+	}
+
+	/**
+	 * Hand a server's answer to a read to the request waiting for it.
+	 */
+	private void receiveReply(Reply reply) {
+		if (reply.getVersion() > lastVersion)
+			lastVersion = reply.getVersion();
+		CompletableFuture<Reply> request = pending.remove(reply.getId());
+		if (request != null)
+			request.complete(reply);
+	}
+
 	// Disconnects the unit from the battlefield by exiting its run-state
 	public void disconnect() {
 		running = false;
+		// Nobody is going to reply anymore
+		for (CompletableFuture<Reply> request : pending.values())
+			request.complete(null);
 	}
 
 	/**
@@ -0,0 +1,81 @@
+package org.distsys.common.das.units;
+
+import org.distsys.common.das.units.Unit.UnitType;
+
+import java.io.Serializable;
+
+/**
+ * Read-only copy of the properties of a unit on the
+ * battlefield at a given moment. The battlefield hands
+ * these out instead of the units themselves, which are
+ * only kept in flat arrays.
+ */
+public final class UnitState implements Serializable {
+	private static final long serialVersionUID = 6045327808412968873L;
+
+	private final int unitID;
+	private final UnitType type;
+	private final int x, y;
+	private final int hitPoints;
+	private final int maxHitPoints;
+	private final int attackPoints;
+
+	public UnitState(int unitID, UnitType type, int x, int y, int hitPoints, int maxHitPoints, int attackPoints) {
+		this.unitID = unitID;
+		this.type = type;
+		this.x = x;
+		this.y = y;
+		this.hitPoints = hitPoints;
+		this.maxHitPoints = maxHitPoints;
+		this.attackPoints = attackPoints;
+	}
+
+	/**
+	 * @return the unique unit identifier.
+	 */
+	public int getUnitID() {
+		return unitID;
+	}
+
+	/**
+	 * @return whether this is a player or a dragon.
+	 */
+	public UnitType getType() {
+		return type;
+	}
+
+	/**
+	 * @return the x position
+	 */
+	public int getX() {
+		return x;
+	}
+
+	/**
+	 * @return the y position
+	 */
+	public int getY() {
+		return y;
+	}
+
+	/**
+	 * @return the current number of hitpoints.
+	 */
+	public int getHitPoints() {
+		return hitPoints;
+	}
+
+	/**
+	 * @return the maximum number of hitpoints.
+	 */
+	public int getMaxHitPoints() {
+		return maxHitPoints;
+	}
+
+	/**
+	 * @return the attack points
+	 */
+	public int getAttackPoints() {
+		return attackPoints;
+	}
+}
@@ -1,7 +1,269 @@
 package org.distsys.common.messages;
 
-import java.util.HashMap;
+import org.distsys.common.das.MessageRequest;
+import org.distsys.common.das.units.UnitState;
 
-public class Message extends HashMap<String, Object> {
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+
+/**
+ * A request of a unit to the battlefield. Every kind of request
+ * only uses the fields it needs, see the factory methods, and is
+ * written in a compact binary form by {@link MessageCodec}.
+ * <p>
+ * The id of a message is unique over the whole game: the upper
+ * half holds the id of the unit that sent it, the lower half a
+ * counter of that unit.
+ * <p>
+ * Reads are not replicated, the server that gets them answers from
+ * its own copy of the battlefield with a reply message. A read can
+ * ask for the copy to be at a version at least, see {@link #getVersion()}.
+ */
+public final class Message implements Externalizable {
 	private static final long serialVersionUID = 3389611873231462972L;
+
+	private MessageRequest request;
+	private long id;
+	private int x, y;
+	/* Damage dealt, hitpoints healed, radius, batch size or assigned unit id, depending on the request */
+	private int value;
+	/* The unit being spawned or put */
+	private UnitState unit;
+	/* The version a read wants to see at least */
+	private long version;
+	/* The answer to a read */
+	private Reply reply;
+
+	/**
+	 * Only for deserialization, use the factory methods instead.
+	 */
+	public Message() {
+	}
+
+	Message(MessageRequest request, long id, int x, int y, int value, UnitState unit) {
+		this.request = request;
+		this.id = id;
+		this.x = x;
+		this.y = y;
+		this.value = value;
+		this.unit = unit;
+	}
+
+	/**
+	 * @return the id of the counter-th message sent by a unit.
+	 */
+	public static long newId(int unitID, int counter) {
+		return ((long) unitID << 32) | (counter & 0xffffffffL);
+	}
+
+	public static Message spawnUnit(long id, UnitState unit, int x, int y) {
+		return new Message(MessageRequest.spawnUnit, id, x, y, 0, unit);
+	}
+
+	public static Message putUnit(long id, UnitState unit, int x, int y) {
+		return new Message(MessageRequest.putUnit, id, x, y, 0, unit);
+	}
+
+	/**
+	 * @return the message that moves the unit that sends it, which
+	 * the battlefield finds by the unit id in the message id.
+	 */
+	public static Message moveUnit(long id, int x, int y) {
+		return new Message(MessageRequest.moveUnit, id, x, y, 0, null);
+	}
+
+	/**
+	 * @return the message that removes the unit that sends it, which
+	 * the battlefield finds by the unit id in the message id. The
+	 * position only tells the server which units to pass it on to.
+	 */
+	public static Message removeUnit(long id, int x, int y) {
+		return new Message(MessageRequest.removeUnit, id, x, y, 0, null);
+	}
+
+	/**
+	 * @param version the version of the battlefield the reply should be read at, at least.
+	 */
+	public static Message getUnit(long id, int x, int y, long version) {
+		return newRead(MessageRequest.getUnit, id, x, y, 0, version);
+	}
+
+	/**
+	 * @param version the version of the battlefield the reply should be read at, at least.
+	 */
+	public static Message getType(long id, int x, int y, long version) {
+		return newRead(MessageRequest.getType, id, x, y, 0, version);
+	}
+
+	/**
+	 * @param version the version of the battlefield the reply should be read at, at least.
+	 */
+	public static Message getNeighbourhood(long id, int x, int y, int radius, long version) {
+		return newRead(MessageRequest.getNeighbourhood, id, x, y, radius, version);
+	}
+
+	static Message newRead(MessageRequest request, long id, int x, int y, int value, long version) {
+		Message message = new Message(request, id, x, y, value, null);
+		message.version = version;
+		return message;
+	}
+
+	/**
+	 * @return the message a server answers a read with, carrying the id of the read.
+	 */
+	public static Message reply(Reply reply) {
+		Message message = new Message(MessageRequest.reply, reply.getId(), 0, 0, 0, null);
+		message.reply = reply;
+		return message;
+	}
+
+	/**
+	 * @return the message a master tells the unit that sent a message with, when it was not committed.
+	 */
+	public static Message aborted(long id) {
+		return new Message(MessageRequest.aborted, id, 0, 0, 0, null);
+	}
+
+	public static Message dealDamage(long id, int x, int y, int damage) {
+		return new Message(MessageRequest.dealDamage, id, x, y, damage, null);
+	}
+
+	public static Message healDamage(long id, int x, int y, int healed) {
+		return new Message(MessageRequest.healDamage, id, x, y, healed, null);
+	}
+
+	/**
+	 * @return the message a master sends to a unit that connects, telling its id.
+	 * A unit sends the same message to the slave it connects to, telling who it is.
+	 */
+	public static Message assignUnitID(int unitID) {
+		return new Message(MessageRequest.assignUnitID, 0, 0, 0, unitID, null);
+	}
+
+	/**
+	 * @return the message that stands for a batch of messages in a vote.
+	 */
+	public static Message batch(int size) {
+		return new Message(MessageRequest.batch, 0, 0, 0, size, null);
+	}
+
+	public MessageRequest getRequest() {
+		return request;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return the id of the unit that sent this message.
+	 */
+	public int getUnitID() {
+		return (int) (id >>> 32);
+	}
+
+	/**
+	 * @return the number of messages the unit sent before this one.
+	 */
+	public int getCounter() {
+		return (int) id;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getDamage() {
+		return value;
+	}
+
+	public int getHealed() {
+		return value;
+	}
+
+	public int getRadius() {
+		return value;
+	}
+
+	public int getBatchSize() {
+		return value;
+	}
+
+	public int getAssignedUnitID() {
+		return value;
+	}
+
+	public UnitState getUnit() {
+		return unit;
+	}
+
+	/**
+	 * @return the version of the battlefield a read should be answered at, at least.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public Reply getReply() {
+		return reply;
+	}
+
+	/**
+	 * @return whether this only reads from the battlefield.
+	 */
+	public boolean isRead() {
+		return request == MessageRequest.getUnit || request == MessageRequest.getType
+				|| request == MessageRequest.getNeighbourhood;
+	}
+
+	int getValue() {
+		return value;
+	}
+
+	/* Java serialization, used by the RMI calls, writes the binary form as well.
+	 * Replies are never sent that way, so the binary form fits a byte.
+	 */
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+		MessageCodec.write(this, buffer);
+		out.writeByte(buffer.position());
+		out.write(buffer.array(), 0, buffer.position());
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		byte[] bytes = new byte[in.readUnsignedByte()];
+		in.readFully(bytes);
+		Message message = MessageCodec.read(ByteBuffer.wrap(bytes));
+		request = message.request;
+		id = message.id;
+		x = message.x;
+		y = message.y;
+		value = message.value;
+		unit = message.unit;
+		version = message.version;
+		reply = message.reply;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder().append(request);
+		if (id != 0)
+			builder.append(' ').append(getUnitID()).append('-').append(getCounter());
+		builder.append(" (").append(x).append(", ").append(y).append(')');
+		if (value != 0)
+			builder.append(" value=").append(value);
+		if (unit != null)
+			builder.append(" unit=").append(unit.getUnitID());
+		return builder.toString();
+	}
 }
@@ -0,0 +1,392 @@
+package org.distsys.common.messages;
+
+import org.distsys.common.das.MessageRequest;
+import org.distsys.common.das.Neighbourhood;
+import org.distsys.common.das.units.Unit.UnitType;
+import org.distsys.common.das.units.UnitState;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Binary form of a {@link Message}. A message starts with its
+ * request and id, followed by the fields of that request only:
+ * <pre>
+ * spawnUnit, putUnit                  x, y, unit
+ * moveUnit, removeUnit                x, y
+ * dealDamage, healDamage              x, y, value
+ * getUnit, getType                    x, y, version
+ * getNeighbourhood                    x, y, value, version
+ * assignUnitID, batch                 value
+ * reply                               version, kind, unit, type or neighbourhood
+ * aborted                             nothing
+ * </pre>
+ * A unit is written as its id, type, position, hitpoints, maximum
+ * hitpoints and attack points. A neighbourhood as its center and
+ * radius, followed by the type, unit id and hitpoint ratio of every
+ * square. All numbers but the ratios are variable length, so small
+ * coordinates and ids take a single byte.
+ * <p>
+ * On a stream, every message is preceded by its length.
+ */
+public final class MessageCodec {
+
+	private static final MessageRequest[] REQUESTS = MessageRequest.values();
+	private static final UnitType[] TYPES = UnitType.values();
+
+	/**
+	 * Upper bound of the bytes {@link #write(Message, ByteBuffer)} needs:
+	 * a request and id, three fields and a unit of seven fields.
+	 */
+	public static final int MAX_SIZE = 1 + 10 + 3 * 5 + 1 + 6 * 5;
+
+	/**
+	 * Upper bound of a message on a stream, including its length.
+	 * Only replies holding a neighbourhood can be larger, see
+	 * {@link #maxFrameSize(Message)}.
+	 */
+	public static final int MAX_FRAME_SIZE = 1 + MAX_SIZE;
+
+	/* What a reply holds */
+	private static final byte NOTHING = 0, UNIT = 1, TYPE = 2, NEIGHBOURHOOD = 3;
+
+	private MessageCodec() {
+	}
+
+	public static void write(Message message, ByteBuffer buffer) {
+		MessageRequest request = message.getRequest();
+		buffer.put((byte) request.ordinal());
+		writeVarLong(buffer, message.getId());
+		switch (request) {
+			case spawnUnit:
+			case putUnit:
+				writeVarInt(buffer, message.getX());
+				writeVarInt(buffer, message.getY());
+				writeUnit(buffer, message.getUnit());
+				break;
+			case moveUnit:
+			case removeUnit:
+				writeVarInt(buffer, message.getX());
+				writeVarInt(buffer, message.getY());
+				break;
+			case dealDamage:
+			case healDamage:
+				writeVarInt(buffer, message.getX());
+				writeVarInt(buffer, message.getY());
+				writeVarInt(buffer, message.getValue());
+				break;
+			case getUnit:
+			case getType:
+				writeVarInt(buffer, message.getX());
+				writeVarInt(buffer, message.getY());
+				writeVarLong(buffer, message.getVersion());
+				break;
+			case getNeighbourhood:
+				writeVarInt(buffer, message.getX());
+				writeVarInt(buffer, message.getY());
+				writeVarInt(buffer, message.getValue());
+				writeVarLong(buffer, message.getVersion());
+				break;
+			case assignUnitID:
+			case batch:
+				writeVarInt(buffer, message.getValue());
+				break;
+			case reply:
+				writeReply(buffer, message.getReply());
+				break;
+		}
+	}
+
+	public static Message read(ByteBuffer buffer) {
+		MessageRequest request = REQUESTS[buffer.get()];
+		long id = readVarLong(buffer);
+		int x = 0, y = 0, value = 0;
+		UnitState unit = null;
+		switch (request) {
+			case spawnUnit:
+			case putUnit:
+				x = readVarInt(buffer);
+				y = readVarInt(buffer);
+				unit = readUnit(buffer);
+				break;
+			case moveUnit:
+			case removeUnit:
+				x = readVarInt(buffer);
+				y = readVarInt(buffer);
+				break;
+			case dealDamage:
+			case healDamage:
+				x = readVarInt(buffer);
+				y = readVarInt(buffer);
+				value = readVarInt(buffer);
+				break;
+			case getUnit:
+			case getType:
+				x = readVarInt(buffer);
+				y = readVarInt(buffer);
+				return Message.newRead(request, id, x, y, 0, readVarLong(buffer));
+			case getNeighbourhood:
+				x = readVarInt(buffer);
+				y = readVarInt(buffer);
+				value = readVarInt(buffer);
+				return Message.newRead(request, id, x, y, value, readVarLong(buffer));
+			case assignUnitID:
+			case batch:
+				value = readVarInt(buffer);
+				break;
+			case reply:
+				return Message.reply(readReply(buffer, id));
+		}
+		return new Message(request, id, x, y, value, unit);
+	}
+
+	/**
+	 * Write a message to a stream, preceded by its length. The
+	 * stream is not flushed.
+	 */
+	public static void writeFrame(Message message, OutputStream out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(maxFrameSize(message));
+		writeFrame(message, buffer);
+		out.write(buffer.array(), 0, buffer.position());
+	}
+
+	/**
+	 * Put a message in a buffer, preceded by its length, the same
+	 * way {@link #writeFrame(Message, OutputStream)} writes it. The
+	 * buffer needs room for {@link #MAX_FRAME_SIZE} bytes.
+	 */
+	public static void writeFrame(Message message, ByteBuffer buffer) {
+		int start = buffer.position();
+		buffer.position(start + 1);
+		write(message, buffer);
+		int length = buffer.position() - start - 1;
+		if (length < 0x80) {
+			buffer.put(start, (byte) length);
+			return;
+		}
+
+		// Only a reply with a large neighbourhood needs more bytes for its length, move it up to make room
+		byte[] body = new byte[length];
+		buffer.position(start + 1);
+		buffer.get(body);
+		buffer.position(start);
+		writeVarLong(buffer, length);
+		buffer.put(body);
+	}
+
+	/**
+	 * @return how much room {@link #writeFrame(Message, ByteBuffer)} needs at most.
+	 */
+	public static int maxFrameSize(Message message) {
+		Reply reply = message.getReply();
+		if (reply == null || reply.getNeighbourhood() == null)
+			return MAX_FRAME_SIZE;
+		int size = 2 * reply.getNeighbourhood().getRadius() + 1;
+		// Length, request, id, version, kind, center and radius, then the squares
+		return 5 + 1 + 10 + 10 + 1 + 3 * 5 + size * size * (1 + 5 + 4);
+	}
+
+	/**
+	 * Encode messages once, as frames one after the other, to send
+	 * the same bytes to many connections.
+	 *
+	 * @return a read-only buffer holding the frames.
+	 */
+	public static ByteBuffer encodeFrames(List<Message> messages) {
+		int size = 0;
+		for (Message message : messages)
+			size += maxFrameSize(message);
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (Message message : messages)
+			writeFrame(message, buffer);
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Take the next message out of a buffer that frames were put in,
+	 * see {@link #writeFrame(Message, ByteBuffer)}.
+	 *
+	 * @return the message, or null if the buffer does not hold all of
+	 * it yet. The position of the buffer is then left as it was.
+	 */
+	public static Message readFrame(ByteBuffer buffer) {
+		int start = buffer.position();
+		int length = 0;
+		for (int shift = 0; ; shift += 7) {
+			if (!buffer.hasRemaining()) {
+				buffer.position(start);
+				return null;
+			}
+			byte b = buffer.get();
+			length |= (b & 0x7f) << shift;
+			if (b >= 0)
+				break;
+		}
+		if (buffer.remaining() < length) {
+			buffer.position(start);
+			return null;
+		}
+
+		int end = buffer.position() + length;
+		ByteBuffer body = buffer.duplicate();
+		body.limit(end);
+		buffer.position(end);
+		return read(body);
+	}
+
+	/**
+	 * Read a message written by {@link #writeFrame(Message, OutputStream)}.
+	 *
+	 * @throws EOFException if the stream ended.
+	 */
+	public static Message readFrame(InputStream in) throws IOException {
+		int length = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException();
+			length |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				break;
+		}
+
+		byte[] body = new byte[length];
+		for (int read = 0; read < length; ) {
+			int n = in.read(body, read, length - read);
+			if (n < 0)
+				throw new EOFException();
+			read += n;
+		}
+		return read(ByteBuffer.wrap(body));
+	}
+
+	private static void writeUnit(ByteBuffer buffer, UnitState unit) {
+		writeVarInt(buffer, unit.getUnitID());
+		buffer.put((byte) unit.getType().ordinal());
+		writeVarInt(buffer, unit.getX());
+		writeVarInt(buffer, unit.getY());
+		writeVarInt(buffer, unit.getHitPoints());
+		writeVarInt(buffer, unit.getMaxHitPoints());
+		writeVarInt(buffer, unit.getAttackPoints());
+	}
+
+	private static UnitState readUnit(ByteBuffer buffer) {
+		int unitID = readVarInt(buffer);
+		UnitType type = TYPES[buffer.get()];
+		return new UnitState(unitID, type, readVarInt(buffer), readVarInt(buffer),
+				readVarInt(buffer), readVarInt(buffer), readVarInt(buffer));
+	}
+
+	private static void writeReply(ByteBuffer buffer, Reply reply) {
+		writeVarLong(buffer, reply.getVersion());
+		if (reply.getUnit() != null) {
+			buffer.put(UNIT);
+			writeUnit(buffer, reply.getUnit());
+		} else if (reply.getType() != null) {
+			buffer.put(TYPE);
+			buffer.put((byte) reply.getType().ordinal());
+		} else if (reply.getNeighbourhood() != null) {
+			buffer.put(NEIGHBOURHOOD);
+			writeNeighbourhood(buffer, reply.getNeighbourhood());
+		} else {
+			buffer.put(NOTHING);
+		}
+	}
+
+	private static Reply readReply(ByteBuffer buffer, long id) {
+		long version = readVarLong(buffer);
+		Reply reply;
+		switch (buffer.get()) {
+			case UNIT:
+				reply = Reply.ofUnit(id, readUnit(buffer));
+				break;
+			case TYPE:
+				reply = Reply.ofType(id, TYPES[buffer.get()]);
+				break;
+			case NEIGHBOURHOOD:
+				reply = Reply.ofNeighbourhood(id, readNeighbourhood(buffer));
+				break;
+			default:
+				reply = new Reply(id);
+				break;
+		}
+		reply.setVersion(version);
+		return reply;
+	}
+
+	private static void writeNeighbourhood(ByteBuffer buffer, Neighbourhood neighbourhood) {
+		int centerX = neighbourhood.getCenterX(), centerY = neighbourhood.getCenterY();
+		int radius = neighbourhood.getRadius();
+		writeVarInt(buffer, centerX);
+		writeVarInt(buffer, centerY);
+		writeVarInt(buffer, radius);
+		for (int y = centerY - radius; y <= centerY + radius; y++) {
+			for (int x = centerX - radius; x <= centerX + radius; x++) {
+				buffer.put((byte) neighbourhood.getType(x, y).ordinal());
+				writeVarInt(buffer, neighbourhood.getUnitID(x, y));
+				buffer.putFloat(neighbourhood.getHitPointRatio(x, y));
+			}
+		}
+	}
+
+	private static Neighbourhood readNeighbourhood(ByteBuffer buffer) {
+		int centerX = readVarInt(buffer), centerY = readVarInt(buffer);
+		int radius = readVarInt(buffer);
+		Neighbourhood neighbourhood = new Neighbourhood(centerX, centerY, radius);
+		for (int y = centerY - radius; y <= centerY + radius; y++) {
+			for (int x = centerX - radius; x <= centerX + radius; x++) {
+				UnitType type = TYPES[buffer.get()];
+				neighbourhood.set(x, y, type, readVarInt(buffer), buffer.getFloat());
+			}
+		}
+		return neighbourhood;
+	}
+
+	/* Numbers are zigzag encoded first, so small negative numbers stay small */
+
+	static void writeVarInt(ByteBuffer buffer, int value) {
+		int v = (value << 1) ^ (value >> 31);
+		while ((v & ~0x7f) != 0) {
+			buffer.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte) v);
+	}
+
+	static int readVarInt(ByteBuffer buffer) {
+		int v = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = buffer.get();
+			v |= (b & 0x7f) << shift;
+			if (b >= 0)
+				break;
+		}
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/* Ids are never negative, so they are written as they are */
+
+	static void writeVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static long readVarLong(ByteBuffer buffer) {
+		long v = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = buffer.get();
+			v |= (long) (b & 0x7f) << shift;
+			if (b >= 0)
+				break;
+		}
+		return v;
+	}
+}
@@ -0,0 +1,123 @@
+package org.distsys.common.messages;
+
+import org.distsys.common.das.MessageRequest;
+import org.distsys.common.das.Neighbourhood;
+import org.distsys.common.das.units.Unit.UnitType;
+import org.distsys.common.das.units.UnitState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Measures how many messages per second {@link MessageCodec} encodes
+ * and decodes, for a few common kinds of message, and the size of
+ * their frames. Every run encodes the same message into a buffer as
+ * many times as fits, then decodes all of them again. For comparison
+ * the same is done for a dealDamage message in the old format, a
+ * HashMap with string keys written through an ObjectOutputStream that
+ * is reset after every message, as the sockets used to do.
+ * <ul>
+ * <li>das.benchmark.messages: the number of messages in a run (default 200000).</li>
+ * <li>das.benchmark.runs: how many runs are measured, the median is printed (default 5).</li>
+ * </ul>
+ */
+public class MessageCodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = Integer.getInteger("das.benchmark.messages", 200000);
+		int runs = Integer.getInteger("das.benchmark.runs", 5);
+
+		UnitState unit = new UnitState(7, UnitType.player, 12, 20, 15, 20, 5);
+		long id = Message.newId(7, 1000);
+		Neighbourhood neighbourhood = new Neighbourhood(12, 20, 2);
+		neighbourhood.set(13, 20, UnitType.dragon, 3, 0.5f);
+
+		measure("moveUnit", Message.moveUnit(id, 13, 20), count, runs);
+		measure("dealDamage", Message.dealDamage(id, 13, 20, 5), count, runs);
+		measure("spawnUnit", Message.spawnUnit(id, unit, 12, 20), count, runs);
+		measure("getNeighbourhood", Message.getNeighbourhood(id, 12, 20, 2, 1000), count, runs);
+		measure("reply (r=2)", Message.reply(Reply.ofNeighbourhood(id, neighbourhood)), count, runs);
+		measureHashMap(count, runs);
+	}
+
+	private static void measure(String name, Message message, int count, int runs) {
+		int frameSize = MessageCodec.maxFrameSize(message);
+		ByteBuffer buffer = ByteBuffer.allocate(frameSize * count);
+		long[] encodes = new long[runs];
+		long[] decodes = new long[runs];
+		// One extra run first to warm up
+		for (int run = -1; run < runs; run++) {
+			buffer.clear();
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				MessageCodec.writeFrame(message, buffer);
+			long encoded = System.nanoTime();
+			buffer.flip();
+			long decodedId = 0;
+			for (int i = 0; i < count; i++)
+				decodedId ^= MessageCodec.readFrame(buffer).getId();
+			long decoded = System.nanoTime();
+			if (decodedId != (count % 2 == 0 ? 0 : message.getId()))
+				throw new IllegalStateException("Decoded the wrong messages");
+
+			if (run < 0)
+				continue;
+			encodes[run] = encoded - start;
+			decodes[run] = decoded - encoded;
+		}
+		print(name, count, encodes, decodes, buffer.limit() / (double) count);
+	}
+
+	private static void measureHashMap(int count, int runs) throws IOException, ClassNotFoundException {
+		HashMap<String, Object> message = new HashMap<>();
+		message.put("request", MessageRequest.dealDamage);
+		message.put("x", 13);
+		message.put("y", 20);
+		message.put("damage", 5);
+		message.put("id", 7);
+
+		long[] encodes = new long[runs];
+		long[] decodes = new long[runs];
+		int size = 0;
+		for (int run = -1; run < runs; run++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			long start = System.nanoTime();
+			try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+				for (int i = 0; i < count; i++) {
+					out.writeObject(message);
+					out.reset();
+				}
+			}
+			long encoded = System.nanoTime();
+			size = bytes.size();
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+				for (int i = 0; i < count; i++)
+					in.readObject();
+			}
+			long decoded = System.nanoTime();
+
+			if (run < 0)
+				continue;
+			encodes[run] = encoded - start;
+			decodes[run] = decoded - encoded;
+		}
+		print("dealDamage (HashMap)", count, encodes, decodes, size / (double) count);
+	}
+
+	private static void print(String name, int count, long[] encodes, long[] decodes, double bytes) {
+		System.out.printf("%-21s encode %6.2fM/s, decode %6.2fM/s, %5.1f bytes per frame%n",
+				name, count / median(encodes) * 1e3, count / median(decodes) * 1e3, bytes);
+	}
+
+	private static double median(long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+}
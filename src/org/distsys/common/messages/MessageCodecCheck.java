@@ -0,0 +1,198 @@
+package org.distsys.common.messages;
+
+import org.distsys.common.das.MessageRequest;
+import org.distsys.common.das.Neighbourhood;
+import org.distsys.common.das.units.Unit.UnitType;
+import org.distsys.common.das.units.UnitState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that every kind of message comes out of {@link MessageCodec}
+ * the way it went in: written to a buffer and to a stream as a frame,
+ * encoded together with the others by
+ * {@link MessageCodec#encodeFrames(List)}, and, for all but replies,
+ * through Java serialization. The messages use negative coordinates,
+ * large ids and a neighbourhood so large that its length takes more
+ * than one byte, next to the common small numbers.
+ * <p>
+ * Prints every message that does not survive and exits with status 1
+ * if there are any.
+ */
+public class MessageCodecCheck {
+
+	private static int failures;
+
+	public static void main(String[] args) throws Exception {
+		List<Message> messages = samples();
+		for (Message message : messages) {
+			ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.maxFrameSize(message));
+			MessageCodec.writeFrame(message, buffer);
+			buffer.flip();
+			compare("buffer", message, MessageCodec.readFrame(buffer));
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			MessageCodec.writeFrame(message, out);
+			compare("stream", message, MessageCodec.readFrame(new ByteArrayInputStream(out.toByteArray())));
+
+			if (message.getRequest() != MessageRequest.reply)
+				compare("serialization", message, serialize(message));
+		}
+
+		ByteBuffer frames = MessageCodec.encodeFrames(messages);
+		for (Message message : messages)
+			compare("encodeFrames", message, MessageCodec.readFrame(frames));
+		if (frames.hasRemaining())
+			fail("encodeFrames", frames.remaining() + " bytes left over");
+
+		System.out.println((failures == 0 ? "PASSED: " : "FAILED: ") + messages.size() + " messages, " + failures + " failures");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * @return messages of every request, with small and with extreme values.
+	 */
+	static List<Message> samples() {
+		UnitState unit = new UnitState(7, UnitType.dragon, 3, 4, 55, 80, 12);
+		UnitState far = new UnitState(Integer.MAX_VALUE, UnitType.player, 99999, 0, 0, Integer.MAX_VALUE, 1);
+		long small = Message.newId(7, 1);
+		long large = Message.newId(Integer.MAX_VALUE, -1);
+
+		List<Message> messages = new ArrayList<>();
+		for (MessageRequest request : MessageRequest.values()) {
+			switch (request) {
+				case spawnUnit:
+					messages.add(Message.spawnUnit(small, unit, 3, 4));
+					messages.add(Message.spawnUnit(large, far, 99999, 0));
+					break;
+				case putUnit:
+					messages.add(Message.putUnit(small, unit, 3, 4));
+					break;
+				case moveUnit:
+					messages.add(Message.moveUnit(small, 1, 2));
+					messages.add(Message.moveUnit(large, -1, Integer.MIN_VALUE));
+					break;
+				case removeUnit:
+					messages.add(Message.removeUnit(small, 0, 0));
+					break;
+				case dealDamage:
+					messages.add(Message.dealDamage(small, 5, 6, 9));
+					messages.add(Message.dealDamage(large, 5, 6, Integer.MAX_VALUE));
+					break;
+				case healDamage:
+					messages.add(Message.healDamage(small, 5, 6, 3));
+					break;
+				case getUnit:
+					messages.add(Message.getUnit(small, 3, 4, 0));
+					break;
+				case getType:
+					messages.add(Message.getType(large, 3, 4, Long.MAX_VALUE));
+					break;
+				case getNeighbourhood:
+					messages.add(Message.getNeighbourhood(small, 3, 4, 2, 12345));
+					break;
+				case assignUnitID:
+					messages.add(Message.assignUnitID(42));
+					break;
+				case batch:
+					messages.add(Message.batch(1024));
+					break;
+				case reply:
+					Reply nothing = new Reply(small);
+					nothing.setVersion(3);
+					messages.add(Message.reply(nothing));
+					messages.add(Message.reply(Reply.ofUnit(small, unit)));
+					messages.add(Message.reply(Reply.ofType(large, UnitType.undefined)));
+					messages.add(Message.reply(Reply.ofNeighbourhood(small, neighbourhood(4, 4, 1))));
+					messages.add(Message.reply(Reply.ofNeighbourhood(small, neighbourhood(50, 50, 10))));
+					break;
+				case aborted:
+					messages.add(Message.aborted(large));
+					break;
+				default:
+					throw new IllegalStateException("No sample of " + request);
+			}
+		}
+		return messages;
+	}
+
+	private static Neighbourhood neighbourhood(int centerX, int centerY, int radius) {
+		Neighbourhood neighbourhood = new Neighbourhood(centerX, centerY, radius);
+		int i = 0;
+		for (int y = centerY - radius; y <= centerY + radius; y++) {
+			for (int x = centerX - radius; x <= centerX + radius; x++) {
+				i++;
+				if (i % 3 == 0)
+					neighbourhood.set(x, y, UnitType.player, i, i / 100f);
+				else if (i % 5 == 0)
+					neighbourhood.set(x, y, UnitType.dragon, i, 1f);
+			}
+		}
+		return neighbourhood;
+	}
+
+	private static Message serialize(Message message) throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(message);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			return (Message) in.readObject();
+		}
+	}
+
+	private static void compare(String path, Message expected, Message actual) {
+		String want = describe(expected);
+		String got = actual == null ? "nothing" : describe(actual);
+		if (!want.equals(got))
+			fail(path, "wrote " + want + ", read " + got);
+	}
+
+	private static void fail(String path, String problem) {
+		failures++;
+		System.out.println(path + ": " + problem);
+	}
+
+	/**
+	 * @return every field of a message, unlike {@link Message#toString()}.
+	 */
+	private static String describe(Message message) {
+		StringBuilder builder = new StringBuilder()
+				.append(message.getRequest()).append(" id=").append(message.getId())
+				.append(" x=").append(message.getX()).append(" y=").append(message.getY())
+				.append(" value=").append(message.getValue()).append(" version=").append(message.getVersion());
+		if (message.getUnit() != null)
+			builder.append(" unit=").append(describe(message.getUnit()));
+		Reply reply = message.getReply();
+		if (reply != null) {
+			builder.append(" reply id=").append(reply.getId()).append(" version=").append(reply.getVersion());
+			if (reply.getUnit() != null)
+				builder.append(" unit=").append(describe(reply.getUnit()));
+			if (reply.getType() != null)
+				builder.append(" type=").append(reply.getType());
+			Neighbourhood neighbourhood = reply.getNeighbourhood();
+			if (neighbourhood != null) {
+				int radius = neighbourhood.getRadius();
+				builder.append(" neighbourhood=").append(neighbourhood.getCenterX()).append(',')
+						.append(neighbourhood.getCenterY()).append(',').append(radius);
+				for (int y = neighbourhood.getCenterY() - radius; y <= neighbourhood.getCenterY() + radius; y++)
+					for (int x = neighbourhood.getCenterX() - radius; x <= neighbourhood.getCenterX() + radius; x++)
+						builder.append(' ').append(neighbourhood.getType(x, y)).append('/')
+								.append(neighbourhood.getUnitID(x, y)).append('/').append(neighbourhood.getHitPointRatio(x, y));
+			}
+		}
+		return builder.toString();
+	}
+
+	private static String describe(UnitState unit) {
+		return unit.getUnitID() + "/" + unit.getType() + "/" + unit.getX() + "/" + unit.getY() + "/"
+				+ unit.getHitPoints() + "/" + unit.getMaxHitPoints() + "/" + unit.getAttackPoints();
+	}
+}
@@ -0,0 +1,73 @@
+package org.distsys.common.messages;
+
+import org.distsys.common.das.Neighbourhood;
+import org.distsys.common.das.units.Unit.UnitType;
+import org.distsys.common.das.units.UnitState;
+
+/**
+ * The answer of the battlefield to a message, handed to the unit
+ * that is waiting for it. It carries the id of the message and,
+ * depending on the request, what was read from the battlefield.
+ * A server that answers a read also tells the version it read at.
+ */
+public final class Reply {
+
+	private final long id;
+	private UnitState unit;
+	private UnitType type;
+	private Neighbourhood neighbourhood;
+	private long version;
+
+	public Reply(long id) {
+		this.id = id;
+	}
+
+	public static Reply ofUnit(long id, UnitState unit) {
+		Reply reply = new Reply(id);
+		reply.unit = unit;
+		return reply;
+	}
+
+	public static Reply ofType(long id, UnitType type) {
+		Reply reply = new Reply(id);
+		reply.type = type;
+		return reply;
+	}
+
+	public static Reply ofNeighbourhood(long id, Neighbourhood neighbourhood) {
+		Reply reply = new Reply(id);
+		reply.neighbourhood = neighbourhood;
+		return reply;
+	}
+
+	/**
+	 * @return the id of the message this is the answer to.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	public UnitState getUnit() {
+		return unit;
+	}
+
+	public UnitType getType() {
+		return type;
+	}
+
+	public Neighbourhood getNeighbourhood() {
+		return neighbourhood;
+	}
+
+	/**
+	 * @return the version of the battlefield this was read at, or 0
+	 * if it was not read by a server.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+}
@@ -0,0 +1,120 @@
+package org.distsys.server;
+
+import org.distsys.common.das.StateDelta;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary image of the complete battlefield at some version, from
+ * which a server recovers without replaying the whole commit log.
+ * <p>
+ * The file starts with a header holding a magic number, the format
+ * version, the size of the map, the length and the checksum of the
+ * payload. The payload is the binary form of a snapshot, so only the
+ * unit table is stored; the board follows from the unit positions.
+ * <p>
+ * A new checkpoint is written to a temporary file first and moved
+ * over the old one when complete, so a crash while writing leaves
+ * the previous checkpoint intact.
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x44415343; // "DASC"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 4 * 6;
+
+    private final File file;
+    private final File temporary;
+
+    public Checkpoint(File file) {
+        this.file = file;
+        this.temporary = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * Write a snapshot of the battlefield, replacing the previous checkpoint.
+     *
+     * @param snapshot the complete state, see {@link org.distsys.common.das.BattleField#takeSnapshot()}.
+     * @param width    width of the map.
+     * @param height   height of the map.
+     */
+    public void write(StateDelta snapshot, int width, int height) throws IOException {
+        if (!snapshot.isSnapshot())
+            throw new IllegalArgumentException("Only snapshots can be checkpointed, got " + snapshot);
+
+        int size = snapshot.getEncodedSize();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size);
+        buffer.position(HEADER_SIZE);
+        snapshot.write(buffer);
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putInt(8, width);
+        buffer.putInt(12, height);
+        buffer.putInt(16, size);
+        buffer.putInt(20, (int) crc.getValue());
+        buffer.rewind();
+
+        try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining())
+                out.write(buffer);
+            out.force(true);
+        }
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the checkpoint back.
+     *
+     * @param width  width of the map it is restored to.
+     * @param height height of the map it is restored to.
+     * @return the snapshot it holds, or null if there is no checkpoint yet.
+     * @throws IOException if the checkpoint is damaged or does not fit the map.
+     */
+    public StateDelta read(int width, int height) throws IOException {
+        if (!file.exists())
+            return null;
+
+        ByteBuffer buffer;
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+            throw new IOException(file + " is not a checkpoint");
+        int format = buffer.getInt();
+        if (format != FORMAT_VERSION)
+            throw new IOException(file + " has unsupported format " + format);
+        int checkpointWidth = buffer.getInt();
+        int checkpointHeight = buffer.getInt();
+        if (checkpointWidth != width || checkpointHeight != height)
+            throw new IOException(file + " is for a " + checkpointWidth + "x" + checkpointHeight
+                    + " map, not " + width + "x" + height);
+
+        int size = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (size != buffer.remaining())
+            throw new IOException(file + " is incomplete");
+
+        ByteBuffer payload = buffer.slice();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum)
+            throw new IOException(file + " is corrupt");
+
+        return StateDelta.read(payload);
+    }
+}
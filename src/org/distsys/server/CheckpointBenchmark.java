@@ -0,0 +1,122 @@
+package org.distsys.server;
+
+import org.distsys.common.das.BattleField;
+import org.distsys.common.das.StateDelta;
+import org.distsys.common.das.units.Unit.UnitType;
+import org.distsys.common.das.units.UnitState;
+import org.distsys.common.messages.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Compares a {@link Checkpoint} with writing the whole battlefield
+ * through an ObjectOutputStream, which is how the battlefield used
+ * to be shipped around. For every number of units a battlefield is
+ * filled and both formats are written to disk, forced, and read back
+ * into a new battlefield. The time to write and to restore, and the
+ * size of the file, are printed for both.
+ * <ul>
+ * <li>das.benchmark.units: the numbers of units to compare, separated by commas
+ * (default 1000,10000,100000).</li>
+ * <li>das.benchmark.runs: how often each is measured, the median is printed (default 5).</li>
+ * </ul>
+ * The map is made about twice as large as the number of units, so every other square is taken.
+ */
+public class CheckpointBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int runs = Integer.getInteger("das.benchmark.runs", 5);
+        File directory = Files.createTempDirectory("das-checkpoint").toFile();
+        File binary = new File(directory, "checkpoint.dat");
+        File serialized = new File(directory, "battlefield.ser");
+
+        for (String count : System.getProperty("das.benchmark.units", "1000,10000,100000").split(",")) {
+            int units = Integer.parseInt(count.trim());
+            BattleField battleField = fill(units);
+            int width = battleField.getWidth();
+            int height = battleField.getHeight();
+            Checkpoint checkpoint = new Checkpoint(binary);
+
+            long[] binaryWrites = new long[runs];
+            long[] binaryReads = new long[runs];
+            long[] serializedWrites = new long[runs];
+            long[] serializedReads = new long[runs];
+            // One extra run first to warm up
+            for (int run = -1; run < runs; run++) {
+                long start = System.nanoTime();
+                checkpoint.write(battleField.takeSnapshot(), width, height);
+                long written = System.nanoTime();
+                StateDelta snapshot = checkpoint.read(width, height);
+                BattleField restored = new BattleField(width, height, BattleField.LOCK_TILE_SIZE);
+                restored.applyDelta(snapshot);
+                long read = System.nanoTime();
+                check(restored, units);
+
+                try (FileOutputStream file = new FileOutputStream(serialized);
+                     ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(file))) {
+                    out.writeObject(battleField);
+                    out.flush();
+                    file.getFD().sync();
+                }
+                long serializedWritten = System.nanoTime();
+                try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(serialized)))) {
+                    restored = (BattleField) in.readObject();
+                }
+                long serializedRead = System.nanoTime();
+                check(restored, units);
+
+                if (run < 0)
+                    continue;
+                binaryWrites[run] = written - start;
+                binaryReads[run] = read - written;
+                serializedWrites[run] = serializedWritten - read;
+                serializedReads[run] = serializedRead - serializedWritten;
+            }
+
+            System.out.printf("%d units, %dx%d map:%n", units, width, height);
+            System.out.printf("  checkpoint:         write %.1fms, restore %.1fms, %d bytes (%.1f per unit)%n",
+                    median(binaryWrites), median(binaryReads), binary.length(), binary.length() / (double) units);
+            System.out.printf("  ObjectOutputStream: write %.1fms, restore %.1fms, %d bytes (%.1f per unit)%n",
+                    median(serializedWrites), median(serializedReads), serialized.length(), serialized.length() / (double) units);
+            battleField.shutdown();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return a battlefield with a number of units, on every other square.
+     */
+    private static BattleField fill(int units) {
+        int side = (int) Math.ceil(Math.sqrt(units * 2.0));
+        BattleField battleField = new BattleField(side, side, BattleField.LOCK_TILE_SIZE);
+        for (int i = 0; i < units; i++) {
+            int square = i * 2;
+            int x = square % side;
+            int y = square / side;
+            int unitID = battleField.getNewUnitID();
+            UnitType type = i % 10 == 0 ? UnitType.dragon : UnitType.player;
+            UnitState unit = new UnitState(unitID, type, x, y, 20, 20, 5);
+            battleField.processMessage(Message.spawnUnit(Message.newId(unitID, 0), unit, x, y));
+        }
+        return battleField;
+    }
+
+    private static void check(BattleField restored, int units) {
+        if (restored.getUnits().size() != units)
+            throw new IllegalStateException("Restored " + restored.getUnits().size() + " units instead of " + units);
+    }
+
+    private static double median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1e6;
+    }
+}
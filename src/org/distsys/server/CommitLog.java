@@ -0,0 +1,320 @@
+package org.distsys.server;
+
+import org.distsys.common.das.BattleField;
+import org.distsys.common.das.StateDelta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the deltas committed to the battlefield,
+ * so a server can recover its state after a restart.
+ * <p>
+ * The log is made up of memory-mapped segment files, named after
+ * the first version they contain. Every record holds its length,
+ * a checksum and the binary form of a delta. A zero length marks
+ * the end of a segment. Appends only write to the mapping, the
+ * pages are forced to disk for all appends at once every flush
+ * interval. Forcing does not hold up appends, they go on writing
+ * to the mapping in the meantime. A caller that has to know an
+ * append is on disk, before acknowledging it, waits for it in
+ * {@link #sync(long)}, which forces the log right away and shares
+ * that force with everybody else waiting. Once a checkpoint covers
+ * a segment, it is deleted.
+ * <p>
+ * A snapshot from a new master may replace commits this server made
+ * on its own, at versions the snapshot does not reach. Such a snapshot
+ * is checkpointed and all segments are dropped, see {@link #reset()}.
+ * Should the server stop before they are, replaying skips the deltas
+ * of a term older than the checkpoint.
+ */
+public class CommitLog implements Closeable {
+
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+
+    private final File directory;
+    private final int segmentSize;
+    private final ScheduledExecutorService flusher;
+
+    private File segment;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    /* The number of records appended, and how many of them are forced to disk */
+    private long appended;
+    private final Object syncLock = new Object();
+    private long synced;
+    /* Set while a thread in sync() forces the log for all threads waiting there */
+    private boolean forcing;
+    /* The term of the last delta replayed, or of the checkpoint replaying started from */
+    private long replayedTerm;
+
+    /**
+     * Open the log in a directory. Appends start in a new segment,
+     * so existing segments should be replayed first.
+     *
+     * @param directory       where the segments are kept.
+     * @param segmentSize     size of a segment file in bytes.
+     * @param flushIntervalMs time between forcing appends to disk.
+     */
+    public CommitLog(File directory, int segmentSize, long flushIntervalMs) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "commit-log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Append a committed delta. It is durable after the next flush,
+     * or once {@link #sync(long)} returned for it.
+     *
+     * @return the sequence number of the record.
+     */
+    public synchronized long append(StateDelta delta) throws IOException {
+        int size = delta.getEncodedSize();
+        // Keep room for the zero length that ends the segment
+        if (buffer == null || buffer.remaining() < HEADER_SIZE + size + 4)
+            roll(delta.getVersion(), HEADER_SIZE + size + 4);
+
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        delta.write(buffer);
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(start + HEADER_SIZE);
+        payload.limit(start + HEADER_SIZE + size);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        buffer.putInt(start + 4, (int) crc.getValue());
+        // The length goes in last, so a torn record is never read
+        buffer.putInt(start, size);
+        return ++appended;
+    }
+
+    /**
+     * Force all appends so far to disk. The pages are forced without
+     * holding the lock of the log, appends made in the meantime are
+     * left for the next flush.
+     */
+    public void flush() {
+        MappedByteBuffer target;
+        long sequence;
+        synchronized (this) {
+            if (buffer == null || appended == getSynced())
+                return;
+            target = buffer;
+            sequence = appended;
+        }
+        target.force();
+        markSynced(sequence);
+    }
+
+    /**
+     * Wait until a record is forced to disk. The first thread to wait
+     * forces the log, the ones that come in while it does wait for it,
+     * and one of them forces the records appended in the meantime. So
+     * appends that come in together share a single force.
+     *
+     * @param sequence the sequence number of the record, see {@link #append(StateDelta)}.
+     */
+    public void sync(long sequence) {
+        boolean interrupted = false;
+        while (true) {
+            synchronized (syncLock) {
+                if (synced >= sequence)
+                    break;
+                if (forcing) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        // The record has to be on disk before returning, whatever happens
+                        interrupted = true;
+                    }
+                    continue;
+                }
+                forcing = true;
+            }
+            try {
+                flush();
+            } finally {
+                synchronized (syncLock) {
+                    forcing = false;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private long getSynced() {
+        synchronized (syncLock) {
+            return synced;
+        }
+    }
+
+    private void markSynced(long sequence) {
+        synchronized (syncLock) {
+            if (sequence > synced)
+                synced = sequence;
+            syncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Start a new segment for records from a version on.
+     */
+    private void roll(long version, int minimumSize) throws IOException {
+        if (buffer != null) {
+            // Everything appended so far is in this segment
+            buffer.force();
+            markSynced(appended);
+            channel.close();
+        }
+
+        segment = new File(directory, String.format("%020d", version) + SUFFIX);
+        // A segment with the same name holds nothing that was replayed
+        if (segment.exists() && !segment.delete())
+            throw new IOException("Could not replace " + segment);
+
+        channel = FileChannel.open(segment.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, minimumSize));
+    }
+
+    /**
+     * Apply the logged deltas that are newer than the battlefield.
+     * Replaying stops at the first record that is incomplete or
+     * does not follow up on the previous one.
+     *
+     * @param battleField the battlefield to bring up to date.
+     * @param term        the term of the checkpoint the battlefield was restored from.
+     * @return the number of deltas applied.
+     */
+    public int replay(BattleField battleField, long term) throws IOException {
+        replayedTerm = term;
+        int applied = 0;
+        for (File file : segments()) {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer records = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                while (records.remaining() >= HEADER_SIZE) {
+                    int size = records.getInt();
+                    int checksum = records.getInt();
+                    if (size <= 0 || size > records.remaining())
+                        break; // End of the segment
+
+                    ByteBuffer payload = records.slice();
+                    payload.limit(size);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload.duplicate());
+                    if ((int) crc.getValue() != checksum) {
+                        System.out.println("CORRUPT RECORD IN " + file + ", STOPPING REPLAY");
+                        return applied;
+                    }
+
+                    records.position(records.position() + size);
+                    StateDelta delta = StateDelta.read(payload);
+                    if (delta.getVersion() <= battleField.getVersion())
+                        continue; // Already part of the state, e.g. through a checkpoint
+                    if (delta.getTerm() < replayedTerm)
+                        continue; // Replaced by the snapshot of a later master
+
+                    if (!battleField.applyDelta(delta)) {
+                        System.out.println("GAP IN LOG AT " + delta + ", STOPPING REPLAY");
+                        return applied;
+                    }
+                    replayedTerm = delta.getTerm();
+                    applied++;
+                }
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * @return the term of the last delta {@link #replay(BattleField, long)} applied,
+     * or the term it started from if it applied none.
+     */
+    public long getReplayedTerm() {
+        return replayedTerm;
+    }
+
+    /**
+     * Delete the segments that only hold versions up to and
+     * including a checkpoint. The current segment is kept.
+     *
+     * @param version the version of the checkpoint.
+     */
+    public synchronized void truncate(long version) {
+        File[] files = segments();
+        for (int i = 0; i + 1 < files.length; i++) {
+            // A segment ends right before the next one starts
+            if (firstVersion(files[i + 1]) - 1 > version)
+                break;
+            if (files[i].equals(segment))
+                break;
+            if (!files[i].delete())
+                System.out.println("Could not delete " + files[i]);
+        }
+    }
+
+    /**
+     * Drop all segments, for a snapshot that replaces everything
+     * logged so far. The snapshot has to be checkpointed first.
+     * The next append starts a new segment.
+     */
+    public synchronized void reset() throws IOException {
+        if (buffer != null) {
+            channel.close();
+            channel = null;
+            buffer = null;
+            segment = null;
+        }
+        // The checkpoint holds what was appended so far
+        markSynced(appended);
+        for (File file : segments()) {
+            if (!file.delete())
+                throw new IOException("Could not delete " + file);
+        }
+    }
+
+    private File[] segments() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long firstVersion(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flusher.shutdown();
+        flush();
+        if (channel != null)
+            channel.close();
+    }
+}
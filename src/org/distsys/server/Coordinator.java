@@ -0,0 +1,297 @@
+package org.distsys.server;
+
+import org.distsys.common.IGameServer;
+import org.distsys.common.concurrent.AbortTask;
+import org.distsys.common.concurrent.RequestVoteTask;
+import org.distsys.common.das.StateDelta;
+import org.distsys.common.messages.Message;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the rounds of two-phase commit of a master without blocking
+ * the thread that starts them. The requests to the slaves are sent
+ * all at once, and every slave gets its own deadline to answer:
+ * <ul>
+ * <li>das.voteTimeout: how long a slave can take to vote, in milliseconds (default 500).</li>
+ * <li>das.commitTimeout: how long a slave can take to apply a commit, in milliseconds (default 1000).</li>
+ * </ul>
+ * How many slaves have to agree is set by das.quorum:
+ * <ul>
+ * <li>all: every slave has to vote yes and apply the commit (default).</li>
+ * <li>majority: the master and the slaves that answer first have to make up a
+ * majority of all servers of the game, counting the ones that are down.
+ * The other slaves get the same requests, but nobody waits for them.
+ * A master that can not reach a majority therefore gets nothing done on
+ * its own.</li>
+ * </ul>
+ * A vote is lost as soon as so many slaves voted no, failed or missed
+ * their deadline that the quorum can not be reached anymore. A commit
+ * succeeds once the quorum of slaves applied it, and fails once so
+ * many slaves did not that the quorum can not be reached anymore. A
+ * slave that applies it later or not at all is left behind, it
+ * catches up with the next commit it gets, see
+ * {@link GameServer#commit(StateDelta)}.
+ * A slave that voted gives up on the vote once both deadlines passed.
+ * <p>
+ * Since a round is over before every slave answered, the requests of
+ * the next round can reach a slave that is still busy with the last
+ * one. Slaves therefore handle the requests of the master one at a
+ * time, and apply a delta only on top of the version it was taken
+ * from, see {@link GameServer#commit(StateDelta)}. A delta that comes
+ * in before the one it follows up on is turned down, the master sends
+ * it again.
+ * <p>
+ * The duration of every phase is recorded in a {@link Histogram}.
+ */
+public class Coordinator {
+
+    /* Print the histograms every this many rounds */
+    private static final int REPORT_INTERVAL = 100;
+
+    /**
+     * A request to a single slave.
+     */
+    public interface SlaveCall<T> {
+        T call(IGameServer slave) throws Exception;
+    }
+
+    private final Executor executor;
+    private final ScheduledThreadPoolExecutor deadlines;
+    private final long voteTimeout;
+    private final long commitTimeout;
+    private final boolean majority;
+
+    private final Histogram votes = new Histogram("vote");
+    private final Histogram applies = new Histogram("apply");
+    private final Histogram commits = new Histogram("commit");
+    private final Histogram slaveCommits = new Histogram("slave commit");
+    private final Histogram rounds = new Histogram("round");
+    private final AtomicInteger missedDeadlines = new AtomicInteger();
+    private final AtomicInteger missedCommits = new AtomicInteger();
+    private final AtomicInteger resends = new AtomicInteger();
+
+    /**
+     * @param executor runs the requests to the slaves, which block until answered.
+     */
+    public Coordinator(Executor executor) {
+        this(executor, Long.getLong("das.voteTimeout", 500), Long.getLong("das.commitTimeout", 1000),
+                "majority".equalsIgnoreCase(System.getProperty("das.quorum", "all")));
+    }
+
+    /**
+     * @param majority whether a majority of the servers is enough, rather than all of them.
+     */
+    public Coordinator(Executor executor, long voteTimeout, long commitTimeout, boolean majority) {
+        this.executor = executor;
+        this.voteTimeout = voteTimeout;
+        this.commitTimeout = commitTimeout;
+        this.majority = majority;
+        deadlines = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "2pc-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most requests are answered long before their deadline
+        deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @param slaves  the number of slaves that are reachable.
+     * @param members the number of slaves in the game, reachable or not.
+     * @return how many slaves make a quorum together with the master.
+     */
+    public int quorum(int slaves, int members) {
+        // A majority of all servers, of which the master is one
+        return majority ? (members + 1) / 2 : slaves;
+    }
+
+    /**
+     * Ask all slaves to vote on a message.
+     *
+     * @param members the number of slaves in the game, see {@link #quorum(int, int)}.
+     * @return completes with whether a quorum of the slaves voted yes in time.
+     */
+    public CompletableFuture<Boolean> vote(Collection<IGameServer> slaves, int members, Message vote) {
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+        int quorum = quorum(slaves.size(), members);
+        if (quorum == 0)
+            outcome.complete(true);
+        else if (quorum > slaves.size())
+            outcome.complete(false);
+
+        AtomicInteger yes = new AtomicInteger();
+        AtomicInteger no = new AtomicInteger();
+        for (IGameServer slave : slaves) {
+            RequestVoteTask task = new RequestVoteTask(vote, slave);
+            call(task::call, voteTimeout).whenComplete((agreed, e) -> {
+                if (e != null || !agreed) {
+                    if (no.incrementAndGet() > slaves.size() - quorum)
+                        outcome.complete(false);
+                } else if (yes.incrementAndGet() == quorum) {
+                    outcome.complete(true);
+                }
+            });
+        }
+        return outcome.whenComplete((agreed, e) -> votes.record(System.nanoTime() - start));
+    }
+
+    /**
+     * Tell all slaves a vote was lost, without waiting for them.
+     */
+    public void abort(Collection<IGameServer> slaves, Message vote) {
+        for (IGameServer slave : slaves) {
+            AbortTask task = new AbortTask(vote, slave);
+            call(task::call, voteTimeout);
+        }
+    }
+
+    /**
+     * Send a commit to all slaves.
+     *
+     * @param members the number of slaves in the game, see {@link #quorum(int, int)}.
+     * @param commit  sends the commit to a single slave, telling whether the slave applied it.
+     * @return completes with true once a quorum of the slaves applied the commit,
+     * or with false once that can not happen anymore.
+     */
+    public CompletableFuture<Boolean> commit(Collection<IGameServer> slaves, int members, SlaveCall<Boolean> commit) {
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+        int quorum = quorum(slaves.size(), members);
+        if (quorum == 0)
+            outcome.complete(true);
+        else if (quorum > slaves.size())
+            outcome.complete(false);
+
+        AtomicInteger applied = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        for (IGameServer slave : slaves) {
+            call(() -> commit.call(slave), commitTimeout).whenComplete((result, e) -> {
+                if (e != null || !result) {
+                    if (e instanceof TimeoutException)
+                        missedDeadlines.incrementAndGet();
+                    missedCommits.incrementAndGet();
+                    if (failed.incrementAndGet() > slaves.size() - quorum)
+                        outcome.complete(false);
+                } else {
+                    slaveCommits.record(System.nanoTime() - start);
+                    if (applied.incrementAndGet() == quorum)
+                        outcome.complete(true);
+                }
+            });
+        }
+        return outcome.whenComplete((v, e) -> commits.record(System.nanoTime() - start));
+    }
+
+    /**
+     * Run a task once a round started now is past all its deadlines.
+     * A slave uses this to stop waiting for the commit of a vote.
+     */
+    public void afterDeadlines(Runnable task) {
+        deadlines.schedule(task, voteTimeout + commitTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record how long the master took to apply a round itself.
+     */
+    public void recordApply(long nanos) {
+        applies.record(nanos);
+    }
+
+    /**
+     * Record that a commit is sent again because no quorum applied it.
+     */
+    public void recordResend() {
+        resends.incrementAndGet();
+    }
+
+    /**
+     * Record how long a whole round took, from the start of the vote.
+     */
+    public void recordRound(long nanos) {
+        rounds.record(nanos);
+        if (rounds.getCount() % REPORT_INTERVAL == 0)
+            System.out.println(this);
+    }
+
+    /**
+     * Run a request to a slave on the executor, failing it with a
+     * {@link TimeoutException} once the deadline passed. The request
+     * itself goes on, its result is ignored.
+     */
+    private <T> CompletableFuture<T> call(Callable<T> request, long timeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> deadline = deadlines.schedule(
+                () -> result.completeExceptionally(new TimeoutException()), timeout, TimeUnit.MILLISECONDS);
+        executor.execute(() -> {
+            try {
+                result.complete(request.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+            deadline.cancel(false);
+        });
+        return result;
+    }
+
+    public Histogram getVoteLatency() {
+        return votes;
+    }
+
+    public Histogram getApplyLatency() {
+        return applies;
+    }
+
+    public Histogram getCommitLatency() {
+        return commits;
+    }
+
+    /**
+     * @return the time from the start of a commit until a single slave applied it.
+     */
+    public Histogram getSlaveCommitLatency() {
+        return slaveCommits;
+    }
+
+    public Histogram getRoundLatency() {
+        return rounds;
+    }
+
+    /**
+     * @return how often a slave did not apply a commit in time.
+     */
+    public int getMissedDeadlines() {
+        return missedDeadlines.get();
+    }
+
+    /**
+     * @return how often a slave did not apply a commit, because it missed the
+     * deadline, failed, or was too far behind.
+     */
+    public int getMissedCommits() {
+        return missedCommits.get();
+    }
+
+    /**
+     * @return how often a commit was sent again, see {@link #recordResend()}.
+     */
+    public int getResends() {
+        return resends.get();
+    }
+
+    @Override
+    public String toString() {
+        return "2PC " + rounds + "; " + votes + "; " + applies + "; " + commits + "; " + slaveCommits
+                + "; " + missedDeadlines.get() + " missed deadlines, " + missedCommits.get() + " missed commits, "
+                + resends.get() + " resends";
+    }
+}
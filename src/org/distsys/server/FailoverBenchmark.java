@@ -0,0 +1,204 @@
+package org.distsys.server;
+
+import org.distsys.common.das.BattleField;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the game goes without a master when the master
+ * dies, see {@link LeaderElection}. A matchmaking server and a number
+ * of game servers are started on this machine, each in a JVM of its
+ * own, talking over RMI. Every trial kills the master outright, waits
+ * for another server to win the election and for a slave to apply the
+ * snapshot of the new master, and then starts the killed server again,
+ * now as a slave. Both times are taken from the kill, and printed for
+ * every trial and as percentiles at the end.
+ * <ul>
+ * <li>das.benchmark.servers: the number of game servers (default 3).</li>
+ * <li>das.benchmark.trials: how often the master is killed (default 10).</li>
+ * <li>das.benchmark.port: the port of the matchmaking server, the game servers
+ * take the ports after it (default 1100).</li>
+ * <li>das.logDir: every server keeps its log in a directory of its own below it
+ * (default a new temporary directory).</li>
+ * <li>das.quorum, das.heartbeatInterval, das.electionTimeout: passed on to the servers.</li>
+ * </ul>
+ * The servers commit every message on its own (das.tickRate=0), there are no units.
+ */
+public class FailoverBenchmark {
+
+    private static final String[] PASSED_ON = {"das.quorum", "das.heartbeatInterval", "das.electionTimeout"};
+
+    /* The lines the servers print, with the server and the time they were read at */
+    private static final BlockingQueue<Line> lines = new LinkedBlockingQueue<>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            runServer(args);
+            return;
+        }
+
+        int servers = Integer.getInteger("das.benchmark.servers", 3);
+        int trials = Integer.getInteger("das.benchmark.trials", 10);
+        int port = Integer.getInteger("das.benchmark.port", 1100);
+        String logDir = System.getProperty("das.logDir");
+        File directory = logDir != null ? new File(logDir) : Files.createTempDirectory("das-failover").toFile();
+
+        Process matchmaking = start("matchmaking", String.valueOf(port));
+        await("READY", 10000);
+        Map<Integer, Process> processes = new ConcurrentHashMap<>();
+        for (int i = 1; i <= servers; i++) {
+            processes.put(port + i, startServer(port, port + i, directory));
+            await("READY", 10000);
+        }
+        // The first server became the master, let the others settle in
+        Thread.sleep(2000);
+
+        String master = host(port + 1) + "/server";
+        List<Double> elections = new ArrayList<>();
+        List<Double> resyncs = new ArrayList<>();
+        try {
+            for (int trial = 0; trial < trials; trial++) {
+                int masterPort = Integer.parseInt(master.substring(master.indexOf(':') + 1, master.indexOf('/')));
+                lines.clear();
+                long kill = System.nanoTime();
+                processes.remove(masterPort).destroyForcibly();
+
+                Line elected = await("IS MASTER FOR TERM", 5000);
+                if (elected == null) {
+                    System.out.println("trial " + trial + ": no master was elected");
+                    break;
+                }
+                Line resynced = await("COMMITING snapshot", 3000);
+                double election = (elected.time - kill) / 1e6;
+                double resync = resynced == null ? Double.NaN : (resynced.time - kill) / 1e6;
+                elections.add(election);
+                if (resynced != null)
+                    resyncs.add(resync);
+                System.out.printf("trial %d: %s elected after %.1fms, slave resynced after %.1fms%n",
+                        trial, elected.server, election, resync);
+                master = elected.text.substring(0, elected.text.indexOf(' '));
+
+                // The killed server comes back as a slave
+                processes.put(masterPort, startServer(port, masterPort, directory));
+                await("READY", 10000);
+                Thread.sleep(1500);
+            }
+        } finally {
+            for (Process process : processes.values())
+                process.destroyForcibly();
+            matchmaking.destroyForcibly();
+        }
+
+        System.out.println(servers + " servers, " + elections.size() + " trials");
+        System.out.println("elected:  " + summary(elections));
+        System.out.println("resynced: " + summary(resyncs));
+        System.exit(0);
+    }
+
+    /**
+     * Run a single matchmaking or game server, in a JVM started by {@link #main(String[])}.
+     */
+    private static void runServer(String[] args) throws Exception {
+        int port = Integer.parseInt(args[1]);
+        Registry registry = LocateRegistry.createRegistry(port);
+        if (args[0].equals("matchmaking")) {
+            MatchmakingServer matchmakingServer = new MatchmakingServer(host(port));
+            UnicastRemoteObject.exportObject(matchmakingServer, 0);
+            registry.rebind("server", matchmakingServer);
+        } else {
+            GameServer server = new GameServer(host(port), new BattleField(25, 25, BattleField.LOCK_TILE_SIZE), new File(args[2]));
+            UnicastRemoteObject.exportObject(server, 0);
+            registry.rebind("server", server);
+            server.start(host(Integer.parseInt(args[3])));
+        }
+        System.out.println("READY");
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    private static Process startServer(int matchmakingPort, int port, File directory) throws IOException {
+        return start("game", String.valueOf(port), new File(directory, "server-" + port).getPath(),
+                String.valueOf(matchmakingPort));
+    }
+
+    /**
+     * Start a server in a new JVM, and pass on what it prints.
+     */
+    private static Process start(String... args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), "-Ddas.tickRate=0"));
+        for (String property : PASSED_ON) {
+            if (System.getProperty(property) != null)
+                command.add("-D" + property + "=" + System.getProperty(property));
+        }
+        command.add(FailoverBenchmark.class.getName());
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String server = args[1];
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String text;
+                while ((text = in.readLine()) != null)
+                    lines.add(new Line(server, System.nanoTime(), text));
+            } catch (IOException e) {
+                // The server was killed
+            }
+        }, "output-" + server);
+        reader.setDaemon(true);
+        reader.start();
+        return process;
+    }
+
+    /**
+     * @return the first line that contains a text, or null if none came in time.
+     */
+    private static Line await(String text, long timeoutMs) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (true) {
+            Line line = lines.poll(end - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (line == null || line.text.contains(text))
+                return line;
+        }
+    }
+
+    private static String summary(List<Double> millis) {
+        if (millis.isEmpty())
+            return "none";
+        Collections.sort(millis);
+        return String.format("p50 %.0fms, min %.0fms, max %.0fms",
+                millis.get((millis.size() - 1) / 2), millis.get(0), millis.get(millis.size() - 1));
+    }
+
+    private static String host(int port) {
+        return "localhost:" + port;
+    }
+
+    private static class Line {
+        private final String server;
+        private final long time;
+        private final String text;
+
+        private Line(String server, long time, String text) {
+            this.server = server;
+            this.time = time;
+            this.text = text;
+        }
+    }
+}
@@ -3,70 +3,273 @@ package org.distsys.server;
 import org.distsys.common.EC2Server;
 import org.distsys.common.IGameServer;
 import org.distsys.common.IMatchmakingServer;
-import org.distsys.common.MessageSocket;
-import org.distsys.common.concurrent.AbortTask;
-import org.distsys.common.concurrent.ClientMessageTask;
+import org.distsys.common.Transport;
 import org.distsys.common.concurrent.ListenTask;
-import org.distsys.common.concurrent.RequestVoteTask;
 import org.distsys.common.das.BattleField;
+import org.distsys.common.das.MessageRequest;
+import org.distsys.common.das.StateDelta;
 import org.distsys.common.das.units.Unit;
+import org.distsys.common.das.units.UnitState;
 import org.distsys.common.messages.Message;
+import org.distsys.common.messages.MessageCodec;
+import org.distsys.common.messages.Reply;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.MalformedURLException;
-import java.rmi.Naming;
+import java.nio.ByteBuffer;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class GameServer extends EC2Server implements IGameServer {
 
 	private final static String mmServer = "ec2-52-28-215-173.eu-central-1.compute.amazonaws.com";
-	public static AtomicBoolean isMaster;
-	public static AtomicBoolean isListening;
+	public final AtomicBoolean isMaster = new AtomicBoolean(false);
+	public final AtomicBoolean isListening = new AtomicBoolean(false);
 
-	private Map<String, MessageSocket> clients;
+	private Map<String, Transport.Connection> clients;
+	/* The part of the battlefield each of the clients is interested in */
+	private InterestMap interest;
 	private Map<String, IGameServer> slaves;
 	private Message currentMessage;
 	private AtomicBoolean readyToCommit;
 	private BattleField battleField;
 
+	/* Recent deltas, oldest first, from which lagging slaves can catch up */
+	private static final int HISTORY_SIZE = 256;
+	private final Deque<StateDelta> history = new ArrayDeque<>();
+
+	/* Durable log of everything committed to the battlefield */
+	private CommitLog commitLog;
+
+	/* Periodic image of the battlefield, so the log can be truncated */
+	private Checkpoint checkpoint;
+	private ScheduledExecutorService checkpointer;
+
+	/* Batches the messages of the units per tick or in groups, both null to commit every message on its own */
+	private TickEngine tickEngine;
+	private GroupCommitter groupCommitter;
+
+	/* The connections the units send their writes over, to tell them about writes that were aborted */
+	private Map<Integer, Transport.Connection> writers;
+
+	/* Reads that asked for a version this server has not reached yet, oldest first */
+	private static final long READ_WAIT = Long.getLong("das.readWait", 5000);
+	private final List<DeferredRead> deferredReads = new ArrayList<>();
+
+	/* Elects the master among the servers, and the term this server is master for */
+	private LeaderElection election;
+	private volatile long term;
+	/* The term of the last commit applied to the battlefield, see LeaderElection#requestVote */
+	private volatile long lastTerm;
+	/* Set when this server stopped being master, its battlefield may hold commits the others never got */
+	private volatile boolean diverged;
+	/* Requests of the master are handled one at a time, see commit(StateDelta) */
+	private final Object applyLock = new Object();
+	private IMatchmakingServer matchmakingServer;
+
 	private GameServer() throws Exception {
 		super();
+		init(BattleField.getBattleField(), new File(System.getProperty("das.logDir", "commitlog")));
+	}
+
+	/**
+	 * Create a server for a headless simulation, that runs in the
+	 * same JVM as the other servers and is reached through an
+	 * {@link org.distsys.common.InMemoryTransport}.
+	 *
+	 * @param host         the name of the server.
+	 * @param battleField  its own copy of the battlefield.
+	 * @param logDirectory where it keeps its commit log.
+	 */
+	public GameServer(String host, BattleField battleField, File logDirectory) throws Exception {
+		super(host);
+		init(battleField, logDirectory);
+	}
+
+	private void init(BattleField battleField, File logDirectory) {
 		clients = new ConcurrentHashMap<>();
+		writers = new ConcurrentHashMap<>();
 		slaves = new ConcurrentHashMap<>();
 		readyToCommit = new AtomicBoolean(false);
-		isMaster = new AtomicBoolean(false);
-		isListening = new AtomicBoolean(false);
-		battleField = BattleField.getBattleField();
+		this.battleField = battleField;
+		interest = new InterestMap(battleField.getWidth(), battleField.getHeight());
+		openCommitLog(logDirectory);
+		coordinator = new Coordinator(pool);
+		election = new LeaderElection(this, hostname, logDirectory, pool);
+
+		int tickRate = Integer.getInteger("das.tickRate", 10);
+		int groupCommitSize = Integer.getInteger("das.groupCommitSize", 0);
+		if (tickRate > 0) {
+			tickEngine = new TickEngine(tickRate, this::commitBatch);
+			tickEngine.start();
+		} else if (groupCommitSize > 0) {
+			groupCommitter = new GroupCommitter(groupCommitSize, Long.getLong("das.groupCommitDelay", 1000), this::commitBatch);
+			groupCommitter.start();
+		}
+	}
+
+	/**
+	 * Open the commit log and recover the battlefield from the
+	 * last checkpoint and the commits logged after it.
+	 */
+	private void openCommitLog(File directory) {
+		int segmentSize = Integer.getInteger("das.logSegmentSize", 64 * 1024 * 1024);
+		long flushInterval = Long.getLong("das.logFlushInterval", 10);
+		long checkpointInterval = Long.getLong("das.checkpointInterval", 60);
+		try {
+			commitLog = new CommitLog(directory, segmentSize, flushInterval);
+
+			checkpoint = new Checkpoint(new File(directory, "checkpoint.dat"));
+			StateDelta snapshot = checkpoint.read(battleField.getWidth(), battleField.getHeight());
+			if (snapshot != null) {
+				battleField.applyDelta(snapshot);
+				lastTerm = snapshot.getTerm();
+				System.out.println("Restored checkpoint at version " + snapshot.getVersion());
+			}
+
+			int replayed = commitLog.replay(battleField, lastTerm);
+			lastTerm = commitLog.getReplayedTerm();
+			System.out.println("Replayed " + replayed + " commits, at version " + battleField.getVersion());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		if (checkpoint != null && checkpointInterval > 0) {
+			checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "checkpointer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			checkpointer.scheduleWithFixedDelay(this::checkpoint, checkpointInterval, checkpointInterval, TimeUnit.SECONDS);
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			if (checkpointer != null)
+				checkpointer.shutdown();
+			try {
+				if (commitLog != null)
+					commitLog.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}));
+	}
+
+	/**
+	 * Write a checkpoint of the battlefield and drop the part of the
+	 * log it covers. Runs in the background, commits only wait for
+	 * the unit table to be copied.
+	 */
+	private void checkpoint() {
+		// Take the term first, a commit of a later term may come in before the snapshot is taken
+		long snapshotTerm = lastTerm;
+		synchronized (checkpoint) {
+			StateDelta snapshot = battleField.takeSnapshot();
+			snapshot.setTerm(snapshotTerm);
+			try {
+				checkpoint.write(snapshot, battleField.getWidth(), battleField.getHeight());
+				commitLog.truncate(snapshot.getVersion());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Start the log over from a snapshot of the master: checkpoint the
+	 * snapshot and drop the whole log. The log may hold commits this
+	 * server made on its own, which the snapshot replaces, and a restart
+	 * must not replay them on top of it.
+	 */
+	private void resetLog(StateDelta snapshot) {
+		if (checkpoint == null) {
+			log(snapshot);
+			return;
+		}
+		synchronized (checkpoint) {
+			try {
+				checkpoint.write(snapshot, battleField.getWidth(), battleField.getHeight());
+				commitLog.reset();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Log a delta and wait until it is on disk, so it is only
+	 * acknowledged once it survives a crash.
+	 */
+	private void log(StateDelta delta) {
+		sync(append(delta));
+	}
+
+	/**
+	 * @return the sequence number of the delta in the log, or 0 if it was not logged.
+	 */
+	private long append(StateDelta delta) {
+		if (commitLog == null) return 0;
+		try {
+			return commitLog.append(delta);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	/**
+	 * Wait until an appended delta is on disk, see {@link CommitLog#sync(long)}.
+	 */
+	private void sync(long sequence) {
+		if (commitLog != null && sequence > 0)
+			commitLog.sync(sequence);
 	}
 
 	public static void main(String[] args) throws Exception {
 		Registry reg = LocateRegistry.createRegistry(1099);
 		GameServer server = new GameServer();
 		reg.rebind("server", server);
+		server.start(mmServer);
+	}
 
-		IMatchmakingServer matchmakingServer = (IMatchmakingServer) Naming.lookup("rmi://" + mmServer + "/server");
+	/**
+	 * Join the game through the matchmaking server, either as
+	 * the master or as a slave of the current master.
+	 *
+	 * @param matchmakingHost the host of the matchmaking server.
+	 */
+	public void start(String matchmakingHost) throws Exception {
+		matchmakingServer = (IMatchmakingServer) Transport.get().lookup(matchmakingHost + "/server");
 		String masterHostname = matchmakingServer.register(hostname);
 		isMaster.set(hostname.equals(masterHostname));
+		battleField.setTrackChanges(isMaster.get());
 
 		if (!isMaster.get()) {
-			IGameServer master = (IGameServer) Naming.lookup("rmi://" + masterHostname);
+			IGameServer master = (IGameServer) Transport.get().lookup(masterHostname);
 			master.registerSlave(hostname);
 			System.out.println("Connected to master: " + masterHostname);
 
 		}
 
-		if (!isListening.get()) {
-			isListening.set(true);
-			server.listenForClients();
+		// From now on the servers elect the master among themselves
+		election.start(isMaster.get() ? null : masterHostname);
+
+		if (isListening.compareAndSet(false, true)) {
+			listenForClients();
 		}
 
 		System.out.println("Server is running.");
@@ -75,68 +278,194 @@ public class GameServer extends EC2Server implements IGameServer {
 	@Override
 	public void setAsMaster(boolean b) throws RemoteException {
 		isMaster.set(b);
+		battleField.setTrackChanges(b);
 
-		if (!isListening.get()) {
+		if (isListening.compareAndSet(false, true)) {
 			listenForClients();
 		}
 	}
 
+	/**
+	 * @return the battlefield this server keeps.
+	 */
+	public BattleField getBattleField() {
+		return battleField;
+	}
+
 	private void listenForClients() {
-		pool.execute(new ListenTask(pool, clients, this));
+		pool.execute(new ListenTask(clients, writers, interest, this));
 	}
 
 	protected final Object lock = new Object();
-
+	/* Time between sending a delta again that did not reach a quorum, in milliseconds */
+	private static final long RESEND_DELAY = 50;
+	/* Rounds of two-phase commit run one after the other, each starts when the last one is done */
+	private CompletableFuture<Boolean> lastRound = CompletableFuture.completedFuture(true);
+	private Coordinator coordinator;
+
+	/**
+	 * Take in a message of a unit. It is committed with the next tick
+	 * (das.tickRate, default 10 per second). With a tick rate of 0 it
+	 * is committed in a group instead if das.groupCommitSize is set,
+	 * see {@link GroupCommitter}, and on its own otherwise.
+	 */
 	@Override
 	public void receiveMessage(Message message) throws RemoteException {
-		synchronized (lock) {
-			AtomicBoolean abort = new AtomicBoolean(false);
-			ArrayList<Future<Boolean>> votes = new ArrayList<>();
-			for (IGameServer server : slaves.values()) {
-				Future<Boolean> vote = pool.submit(new RequestVoteTask(message, server));
-				votes.add(vote);
-			}
+		if (tickEngine != null)
+			tickEngine.submit(message);
+		else if (groupCommitter != null)
+			groupCommitter.submit(message);
+		else
+			commitBatchAsync(Collections.singletonList(message));
+	}
 
-			AtomicInteger numberDone = new AtomicInteger(0);
+	/**
+	 * Commit a batch of messages with a single round of two-phase
+	 * commit and wait for the outcome, see {@link #commitBatchAsync(List)}.
+	 *
+	 * @param messages the messages, in the order they are applied.
+	 * @return whether the batch was committed.
+	 */
+	private boolean commitBatch(List<Message> messages) {
+		return commitBatchAsync(messages).join();
+	}
 
-			for (Future<Boolean> vote : votes) {
-				pool.execute(() -> {
-					try {
-						vote.get(10000, TimeUnit.MILLISECONDS);
-					} catch (InterruptedException | ExecutionException | TimeoutException e) {
-						abort.set(true);
-					}
-					numberDone.getAndIncrement();
-				});
-			}
+	/**
+	 * Commit a batch of messages with a single round of two-phase
+	 * commit, and ship the resulting changes to the slaves at once.
+	 * The round starts once the previous one is done, and runs on the
+	 * threads that answer the slaves, see {@link Coordinator}, so the
+	 * caller does not wait for it. When the batch is aborted, the units
+	 * that sent its messages are told so, see {@link #reportAborted(List)}.
+	 *
+	 * @param messages the messages, in the order they are applied.
+	 * @return completes with whether the batch was committed.
+	 */
+	private CompletableFuture<Boolean> commitBatchAsync(List<Message> messages) {
+		synchronized (lock) {
+			CompletableFuture<Boolean> round = lastRound
+					.handle((committed, e) -> null)
+					.thenCompose(previous -> runRound(messages));
+			lastRound = round;
+			return round;
+		}
+	}
+
+	private CompletableFuture<Boolean> runRound(List<Message> messages) {
+		if (!isMaster.get()) {
+			// Lost an election while the messages waited
+			reportAborted(messages);
+			return CompletableFuture.completedFuture(false);
+		}
+		long start = System.nanoTime();
+		Message vote = messages.size() == 1 ? messages.get(0) : Message.batch(messages.size());
+		List<IGameServer> voters = new ArrayList<>(slaves.values());
 
-			while (numberDone.get() != slaves.size()) {
+		return coordinator.vote(voters, members(), vote).thenCompose(agreed -> {
+			if (!agreed) {
 				try {
-					Thread.sleep(1);
-				} catch (InterruptedException e) {
+					this.abort(vote);
+				} catch (RemoteException e) {
 					e.printStackTrace();
 				}
+				coordinator.abort(voters, vote);
+				reportAborted(messages);
+				return CompletableFuture.completedFuture(false);
 			}
 
-			if (abort.get()) {
-				this.abort(message);
-				for (IGameServer server : slaves.values()) {
-					pool.submit(new AbortTask(message, server));
+			long applyStart = System.nanoTime();
+			for (Message message : messages) {
+				System.out.println("COMMITING " + message);
+				battleField.processMessage(message);
+			}
+			this.currentMessage = null;
+
+			// Ship only what changed to the slaves
+			StateDelta delta = battleField.takeDelta(messages);
+			delta.setTerm(term);
+			lastTerm = term;
+			long logged = append(delta);
+			remember(delta);
+			serveDeferredReads();
+			coordinator.recordApply(System.nanoTime() - applyStart);
+
+			// Force the log while the slaves apply the delta, and log it themselves
+			CompletableFuture<Void> durable = CompletableFuture.runAsync(() -> sync(logged), pool);
+
+			// The units only hear of the messages once a quorum has them, and the master has them on disk
+			return replicate(delta).thenCombine(durable, (committed, synced) -> committed).thenApply(committed -> {
+				if (committed) {
+					try {
+						sendToClients(messages);
+					} catch (RemoteException e) {
+						e.printStackTrace();
+					}
+				} else {
+					reportAborted(messages);
 				}
+				return committed;
+			});
+		}).whenComplete((committed, e) -> {
+			if (e != null)
+				e.printStackTrace();
+			coordinator.recordRound(System.nanoTime() - start);
+		});
+	}
 
-				return;
+	/**
+	 * Send a delta to the slaves until a quorum applied it, see
+	 * {@link Coordinator}. A slave that is behind is sent what it
+	 * missed instead, see {@link #catchUp(long)}. The master applied
+	 * the delta already, so it keeps sending it for as long as it is
+	 * master, waiting {@link #RESEND_DELAY} milliseconds in between.
+	 * Resends are counted rather than printed, see
+	 * {@link Coordinator#getResends()}.
+	 *
+	 * @return completes with true once a quorum applied the delta, or
+	 * with false once this server is no longer master.
+	 */
+	private CompletableFuture<Boolean> replicate(StateDelta delta) {
+		return coordinator.commit(slaves.values(), members(), slave -> {
+			long slaveVersion = slave.commit(delta);
+			if (slaveVersion < delta.getVersion()) {
+				StateDelta catchUp = catchUp(slaveVersion);
+				catchUp.setTerm(delta.getTerm());
+				if (catchUp.isSnapshot())
+					catchUp.setMessages(delta.getMessages());
+				slaveVersion = slave.commit(catchUp);
 			}
+			return slaveVersion >= delta.getVersion();
+		}).thenCompose(applied -> {
+			if (applied || !isMaster.get())
+				return CompletableFuture.completedFuture(applied);
+			coordinator.recordResend();
+			return CompletableFuture.runAsync(() -> {
+			}, CompletableFuture.delayedExecutor(RESEND_DELAY, TimeUnit.MILLISECONDS, pool))
+					.thenCompose(v -> replicate(delta));
+		});
+	}
 
-			this.currentMessage = message;
-			this.commit(message);
-//        battleField.processMessage(message);
-			for (IGameServer server : slaves.values()) {
-				try {
-					server.commit(message);
-//                server.commit(battleField);
-				} catch (RemoteException e) {
-					e.printStackTrace();
-				}
+	/**
+	 * @return the number of slaves in the game, including the ones that are
+	 * down, so a master that lost touch with them does not need fewer votes.
+	 */
+	private int members() {
+		return election.getServerCount() - 1;
+	}
+
+	/**
+	 * Tell the units that sent messages of an aborted batch, so the
+	 * ones waiting for them do not have to wait for a timeout.
+	 */
+	private void reportAborted(List<Message> messages) {
+		for (Message message : messages) {
+			Transport.Connection writer = writers.get(message.getUnitID());
+			if (writer == null)
+				continue;
+			try {
+				writer.send(Message.aborted(message.getId()));
+			} catch (IOException e) {
+				writer.close();
 			}
 		}
 	}
@@ -160,9 +489,10 @@ public class GameServer extends EC2Server implements IGameServer {
 	public void registerSlave(String host) throws RemoteException {
 		pool.execute(() -> {
 			try {
-				IGameServer slave = (IGameServer) Naming.lookup("rmi://" + host);
+				IGameServer slave = (IGameServer) Transport.get().lookup(host);
 				slave.setAsMaster(false);
 				slaves.put(host, slave);
+				election.addServer(host);
 				System.out.println(slaves.size() + " -> " + host + " joined!");
 			} catch (NotBoundException | MalformedURLException | RemoteException e) {
 				e.printStackTrace();
@@ -172,20 +502,24 @@ public class GameServer extends EC2Server implements IGameServer {
 
 	@Override
 	public boolean requestVote(Message message) throws RemoteException {
-		if (this.currentMessage != null && !this.readyToCommit.get()) return false;
-
-		this.currentMessage = message;
-		this.readyToCommit.set(false);
+		/* The master only starts a vote once the previous round was decided, so a
+		 * new vote replaces one whose commit has not come in yet, or never will.
+		 * It waits for a delta that is still being applied, see commit(StateDelta).
+		 */
+		synchronized (applyLock) {
+			this.currentMessage = message;
+			this.readyToCommit.set(false);
+		}
 
-		pool.execute(() -> {
+		// Give up on the vote once the master is past its own deadlines, unless a newer vote came in
+		coordinator.afterDeadlines(() -> {
 			try {
-				Thread.sleep(10000);
-				if (!this.readyToCommit.get()) {
+				if (this.currentMessage == message && !this.readyToCommit.get()) {
 					abort(message);
 					//OR search for last updated & update completely
 					//OR search for new master & update ??
 				}
-			} catch (InterruptedException | RemoteException e) {
+			} catch (RemoteException e) {
 				e.printStackTrace();
 			}
 		});
@@ -202,42 +536,165 @@ public class GameServer extends EC2Server implements IGameServer {
 		//update battlefield
 		battleField.processMessage(message);
 
-		sendToClients(message);
+		sendToClients(Collections.singletonList(message));
 //		sendToClients(reply);
 //        sendToClients(battleField);
 		this.currentMessage = null;
 	}
 
+	/**
+	 * Apply a delta of the master. The master does not wait for a slave
+	 * that is late, so the next delta may come in while this one is still
+	 * being applied. Deltas are therefore applied one at a time, and each
+	 * is logged, remembered and sent to the units before the next one is
+	 * applied, so all of these see the deltas in the order of their versions.
+	 *
+	 * @return the version of the battlefield after the delta, see
+	 * {@link IGameServer#commit(StateDelta)}.
+	 */
 	@Override
-	public void commit(BattleField battleField) throws RemoteException {
-		if (this.currentMessage == null) return;
-		this.readyToCommit.set(true);
-		System.out.println("COMMITING BATTLEFIELD");
+	public long commit(StateDelta delta) throws RemoteException {
+		// Fence off a master that was replaced but does not know it yet
+		if (!election.isCurrent(delta.getTerm()))
+			throw new RemoteException("Term " + delta.getTerm() + " is over, now in term " + election.getTerm());
+		synchronized (applyLock) {
+			// Ask for a snapshot to drop what this server committed as a master on its own
+			if (diverged && !delta.isSnapshot())
+				return -1;
+			if (!battleField.applyDelta(delta)) {
+				System.out.println("BEHIND AT VERSION " + battleField.getVersion() + ", RECEIVED " + delta);
+				return battleField.getVersion();
+			}
+			lastTerm = delta.getTerm();
+			this.readyToCommit.set(true);
+			System.out.println("COMMITING " + delta);
+			if (delta.isSnapshot())
+				resetLog(delta);
+			else
+				log(delta);
+			remember(delta);
+			serveDeferredReads();
+
+			sendToClients(delta.getMessages());
+			this.currentMessage = null;
+			return battleField.getVersion();
+		}
+	}
 
-		this.battleField.updateState(battleField);
+	/**
+	 * Answer a read from the local copy of the battlefield, without
+	 * involving the other servers. A read changes nothing, so any
+	 * server can answer it, as long as the answer is not older than
+	 * what the unit has seen before: a read that asks for a version
+	 * this server has not reached yet waits until it has. One that
+	 * waited das.readWait milliseconds (default 5000) is answered with
+	 * what this server has by then, even when no commit came in, so a
+	 * read on a replica that was cut off does not wait forever.
+	 *
+	 * @param connection the unit that asked.
+	 * @param message    a getUnit, getType or getNeighbourhood message.
+	 */
+	public void read(Transport.Connection connection, Message message) {
+		if (battleField.getVersion() < message.getVersion()) {
+			synchronized (deferredReads) {
+				// Check again, a commit may have served the deferred reads in between
+				if (battleField.getVersion() < message.getVersion()) {
+					deferredReads.add(new DeferredRead(connection, message));
+					CompletableFuture.delayedExecutor(READ_WAIT, TimeUnit.MILLISECONDS, pool)
+							.execute(this::serveDeferredReads);
+					return;
+				}
+			}
+		}
+		answer(connection, message);
+	}
 
-		//update battlefield
-		sendToClients(battleField);
-		this.currentMessage = null;
+	private void answer(Transport.Connection connection, Message message) {
+		// Take the version first, the state read can only be newer
+		long version = battleField.getVersion();
+		Reply reply = battleField.processMessage(message);
+		reply.setVersion(version);
+		try {
+			connection.send(Message.reply(reply));
+		} catch (IOException e) {
+			connection.close();
+		}
 	}
 
-	private void sendToClients(BattleField battleField) {
-		for (MessageSocket client : clients.values()) {
-			pool.execute(() -> {
-				ObjectOutputStream out = client.getObjectOutputStream();
-				try {
-					synchronized (out) {
-						out.writeObject(battleField);
-						out.flush();
-					}
-				} catch (IOException e) {
-					e.printStackTrace();
+	/**
+	 * Answer the deferred reads the battlefield caught up with, and
+	 * the ones that waited too long. Runs after every commit, and
+	 * das.readWait milliseconds after a read was deferred.
+	 */
+	private void serveDeferredReads() {
+		List<DeferredRead> ready = new ArrayList<>();
+		synchronized (deferredReads) {
+			if (deferredReads.isEmpty())
+				return;
+			long version = battleField.getVersion();
+			long now = System.nanoTime();
+			for (Iterator<DeferredRead> iterator = deferredReads.iterator(); iterator.hasNext(); ) {
+				DeferredRead read = iterator.next();
+				if (read.message.getVersion() <= version || now - read.expires >= 0) {
+					ready.add(read);
+					iterator.remove();
 				}
-			});
+			}
+		}
+		for (DeferredRead read : ready)
+			answer(read.connection, read.message);
+	}
+
+	private void remember(StateDelta delta) {
+		synchronized (history) {
+			// Nothing before a snapshot leads up to it
+			if (delta.isSnapshot()) {
+				history.clear();
+				diverged = false;
+				return;
+			}
+			history.addLast(delta);
+			if (history.size() > HISTORY_SIZE)
+				history.removeFirst();
+		}
+	}
+
+	/**
+	 * Build the delta that brings a lagging slave up to date. Only
+	 * when the slave is further behind than the history reaches, a
+	 * snapshot of the whole battlefield is sent instead.
+	 *
+	 * @param version the version the slave is at.
+	 * @return the delta to the current version.
+	 */
+	private StateDelta catchUp(long version) {
+		synchronized (history) {
+			List<StateDelta> missed = new ArrayList<>();
+			for (StateDelta delta : history) {
+				if (delta.getBaseVersion() >= version)
+					missed.add(delta);
+			}
+			if (!missed.isEmpty() && missed.get(0).getBaseVersion() == version) {
+				// The units of the slave have missed the messages of those deltas too
+				List<Message> messages = new ArrayList<>();
+				for (StateDelta delta : missed)
+					messages.addAll(delta.getMessages());
+				StateDelta composed = StateDelta.compose(missed);
+				composed.setMessages(messages);
+				return composed;
+			}
 		}
+		return battleField.takeSnapshot();
 	}
 
-	private void sendToClients(Message message) throws RemoteException {
+	/**
+	 * Pass committed messages on to the units they concern: the unit
+	 * that sent a message and the units interested in the squares it
+	 * changes, see {@link InterestMap}. A message is encoded once, and
+	 * the same bytes are queued for all those units. Units that moved
+	 * take their interest along afterwards.
+	 */
+	private void sendToClients(List<Message> messages) throws RemoteException {
 //        if (message == null) return;
 //        MessageRequest request = (MessageRequest) message.get("request");
 //        if (request == null) {
@@ -255,18 +712,173 @@ public class GameServer extends EC2Server implements IGameServer {
 //		if(request == MessageRequest.getType || request == MessageRequest.getUnit)
 //			return;
 
-		for (Map.Entry<String, MessageSocket> entry : clients.entrySet()) {
-			MessageSocket client = entry.getValue();
-			ClientMessageTask task = new ClientMessageTask(message, client);
-			pool.execute(task);
+		if (clients.isEmpty())
+			return;
+
+		Set<Transport.Connection> recipients = new HashSet<>();
+		for (Message message : messages) {
+			recipients.clear();
+			Transport.Connection sender = clients.get("D" + message.getUnitID());
+			if (sender != null)
+				recipients.add(sender);
+
+			MessageRequest request = message.getRequest();
+			if (request == MessageRequest.moveUnit) {
+				// The square the unit left changes as well, units only move one square at a time
+				interest.collect(message.getX() - 1, message.getY(), recipients);
+				interest.collect(message.getX() + 1, message.getY(), recipients);
+				interest.collect(message.getX(), message.getY() - 1, recipients);
+				interest.collect(message.getX(), message.getY() + 1, recipients);
+			}
+			interest.collect(message.getX(), message.getY(), recipients);
+			if (recipients.isEmpty())
+				continue;
+
+			ByteBuffer frame = MessageCodec.encodeFrames(Collections.singletonList(message));
+			for (Transport.Connection client : recipients) {
+				try {
+					client.send(frame);
+				} catch (IOException e) {
+					client.close();
+				}
+			}
+		}
+
+		for (Message message : messages) {
+			MessageRequest request = message.getRequest();
+			if (request != MessageRequest.spawnUnit && request != MessageRequest.putUnit
+					&& request != MessageRequest.moveUnit)
+				continue;
+			Transport.Connection client = clients.get("D" + message.getUnitID());
+			UnitState unit = client == null ? null : battleField.getUnitByID(message.getUnitID());
+			if (unit != null)
+				interest.subscribe(client, unit.getX(), unit.getY());
+		}
+	}
+
+	private static class DeferredRead {
+		private final Transport.Connection connection;
+		private final Message message;
+		private final long expires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READ_WAIT);
+
+		private DeferredRead(Transport.Connection connection, Message message) {
+			this.connection = connection;
+			this.message = message;
 		}
 	}
 
 	@Override
 	public void abort(Message message) throws RemoteException {
-		System.out.println("ABORTING " + message);
-		this.currentMessage = null;
-		this.readyToCommit.set(false);
+		synchronized (applyLock) {
+			System.out.println("ABORTING " + message);
+			this.currentMessage = null;
+			this.readyToCommit.set(false);
+		}
+	}
+
+	@Override
+	public boolean requestLeaderVote(long term, String candidate, long lastTerm, long version) throws RemoteException {
+		return election.requestVote(term, candidate, lastTerm, version);
+	}
+
+	@Override
+	public long heartbeat(long term, String master, String[] servers) throws RemoteException {
+		return election.heartbeat(term, master, servers);
+	}
+
+	/**
+	 * Take over as master after winning the election of a term. The
+	 * slaves are first brought to the state of this server with a
+	 * snapshot, which replaces whatever the last master committed
+	 * that did not reach this server. Only then are messages of the
+	 * units taken in again, and the matchmaking server is told.
+	 * <p>
+	 * The election does not wait for this. If the snapshot does not
+	 * reach a quorum, or this server lost the term in the meantime,
+	 * it does not take over but steps down.
+	 *
+	 * @param term   the term that was won.
+	 * @param others the other servers, which become the slaves.
+	 */
+	void becomeMaster(long term, String[] others) {
+		for (String host : others) {
+			if (slaves.containsKey(host))
+				continue;
+			try {
+				slaves.put(host, (IGameServer) Transport.get().lookup(host));
+			} catch (NotBoundException | MalformedURLException | RemoteException e) {
+				System.out.println(host + " is not there, leaving it out");
+			}
+		}
+
+		this.term = term;
+		battleField.setTrackChanges(true);
+		StateDelta snapshot = battleField.takeSnapshot();
+		snapshot.setTerm(term);
+		lastTerm = term;
+		remember(snapshot);
+		boolean committed = coordinator.commit(new ArrayList<>(slaves.values()), members(),
+				slave -> slave.commit(snapshot) >= snapshot.getVersion()).join();
+
+		synchronized (applyLock) {
+			if (!committed || !election.isLeader(term)) {
+				System.out.println(hostname + (committed ? " LOST TERM " + term : " COULD NOT BRING A QUORUM UP TO DATE IN TERM " + term));
+				// Stepping down is left to the election if it still counts this server as master
+				if (!election.resign(term))
+					stepDown();
+				return;
+			}
+			isMaster.set(true);
+		}
+		if (isListening.compareAndSet(false, true)) {
+			listenForClients();
+		}
+
+		if (matchmakingServer != null) {
+			try {
+				matchmakingServer.leaderElected(hostname, term);
+			} catch (RemoteException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return the term of the last commit applied to the battlefield.
+	 */
+	long getLastTerm() {
+		return lastTerm;
+	}
+
+	/**
+	 * Stop being master, another server won a later election.
+	 */
+	void stepDown() {
+		synchronized (applyLock) {
+			System.out.println(hostname + " IS NO LONGER MASTER");
+			isMaster.set(false);
+			battleField.setTrackChanges(false);
+			slaves.clear();
+			diverged = true;
+		}
+	}
+
+	/**
+	 * Send commits to a server that answered a heartbeat, if it was left out.
+	 * It catches up with the first commit it gets.
+	 */
+	void slaveUp(String host, IGameServer slave) {
+		if (isMaster.get() && slaves.putIfAbsent(host, slave) == null)
+			System.out.println(slaves.size() + " -> " + host + " is back!");
+	}
+
+	/**
+	 * Stop sending commits to a server that does not answer the heartbeats,
+	 * so rounds do not wait for it.
+	 */
+	void slaveDown(String host) {
+		if (slaves.remove(host) != null)
+			System.out.println(host + " left!");
 	}
 
 }
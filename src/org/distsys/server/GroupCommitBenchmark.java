@@ -0,0 +1,63 @@
+package org.distsys.server;
+
+import org.distsys.common.messages.Message;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the throughput and latency of a {@link GroupCommitter} at a
+ * number of batch sizes, with a closed loop of clients: every client
+ * has one message waiting at a time, and sends the next one as soon as
+ * its last one is committed. A round of two-phase commit is simulated
+ * by waiting a fixed time per round and a little more per message, so
+ * the curve shows what batching does without the network in the way.
+ * <ul>
+ * <li>das.benchmark.clients: the number of clients (default 1024).</li>
+ * <li>das.benchmark.sizes: the batch sizes to compare, separated by commas
+ * (default 1,4,16,64,256,1024).</li>
+ * <li>das.benchmark.seconds: how long every batch size runs (default 5).</li>
+ * <li>das.benchmark.roundMicros: the time a round takes, in microseconds (default 2000).</li>
+ * <li>das.benchmark.messageMicros: the time a round takes longer for every message
+ * in it, in microseconds (default 2).</li>
+ * <li>das.groupCommitDelay: see {@link GroupCommitter} (default 1000).</li>
+ * </ul>
+ */
+public class GroupCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = Integer.getInteger("das.benchmark.clients", 1024);
+        long seconds = Long.getLong("das.benchmark.seconds", 5);
+        long roundNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong("das.benchmark.roundMicros", 2000));
+        long messageNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong("das.benchmark.messageMicros", 2));
+        long delay = Long.getLong("das.groupCommitDelay", 1000);
+
+        for (String size : System.getProperty("das.benchmark.sizes", "1,4,16,64,256,1024").split(",")) {
+            int batchSize = Integer.parseInt(size.trim());
+            GroupCommitter[] committer = new GroupCommitter[1];
+            committer[0] = new GroupCommitter(batchSize, delay, batch -> {
+                LockSupport.parkNanos(roundNanos + messageNanos * batch.size());
+                // Every client sends its next message right away
+                resubmit(committer[0], batch);
+                return true;
+            });
+            committer[0].start();
+            for (int client = 1; client <= clients; client++)
+                committer[0].submit(Message.moveUnit(Message.newId(client, 0), 0, 0));
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            System.out.printf("batch size %4d: %8.0f messages/s, avg batch %.1f, latency avg %.1fms max %.1fms%n",
+                    batchSize, committer[0].getThroughput(),
+                    (double) committer[0].getMessages() / Math.max(1, committer[0].getBatches()),
+                    committer[0].getAverageLatencyNanos() / 1e6, committer[0].getMaxLatencyNanos() / 1e6);
+            committer[0].stop();
+        }
+        System.exit(0);
+    }
+
+    private static void resubmit(GroupCommitter committer, List<Message> batch) {
+        for (Message message : batch)
+            committer.submit(Message.moveUnit(Message.newId(message.getUnitID(), message.getCounter() + 1), 0, 0));
+    }
+}
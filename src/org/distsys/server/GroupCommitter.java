@@ -0,0 +1,195 @@
+package org.distsys.server;
+
+import org.distsys.common.messages.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Commits the messages of the units in groups on the master, as an
+ * alternative to the fixed rate of the {@link TickEngine}. Messages
+ * are queued as they arrive, and a single coordinator thread takes
+ * them out in batches that go through one round of two-phase commit
+ * each. A batch is handed over as soon as it is full, or once its
+ * first message waited long enough, whichever comes first:
+ * <ul>
+ * <li>das.groupCommitSize: the most messages in a batch.</li>
+ * <li>das.groupCommitDelay: how long the first message of a batch waits
+ * for more to arrive, in microseconds (default 1000).</li>
+ * </ul>
+ * A batch size of 1 commits every message on its own, but still
+ * from the coordinator, so the units never wait for each other's
+ * commits on their own threads. Messages are committed in the order
+ * they arrived in.
+ * <p>
+ * For every message the time from its arrival until its batch was
+ * committed is recorded, next to the number of batches and messages,
+ * which gives the throughput and latency at a batch size.
+ */
+public class GroupCommitter {
+
+    /* Print the statistics every this many batches */
+    private static final int REPORT_INTERVAL = 100;
+
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Predicate<List<Message>> handler;
+    private final BlockingQueue<Queued> queue = new LinkedBlockingQueue<>();
+    private final Thread coordinator;
+    private volatile boolean running;
+
+    private long batches;
+    private long aborted;
+    private long messages;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+    private long totalCommitNanos;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * @param maxBatchSize   the most messages in a batch.
+     * @param maxDelayMicros how long the first message of a batch waits for more.
+     * @param handler        applies and replicates a batch, telling whether it was committed.
+     */
+    public GroupCommitter(int maxBatchSize, long maxDelayMicros, Predicate<List<Message>> handler) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.handler = handler;
+        coordinator = new Thread(this::run, "group-commit");
+        coordinator.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        coordinator.start();
+    }
+
+    public void stop() {
+        running = false;
+        coordinator.interrupt();
+    }
+
+    /**
+     * Queue a message for the next batch.
+     */
+    public void submit(Message message) {
+        queue.add(new Queued(message, System.nanoTime()));
+    }
+
+    private void run() {
+        List<Queued> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                Queued first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+
+                // Wait for more until the batch is full or the first message waited long enough
+                long deadline = first.arrived + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0)
+                        continue;
+                    long wait = deadline - System.nanoTime();
+                    Queued next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                if (batch.isEmpty())
+                    continue;
+            }
+
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Queued> batch) {
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (Queued queued : batch)
+            messages.add(queued.message);
+
+        long start = System.nanoTime();
+        boolean committed = false;
+        try {
+            committed = handler.test(messages);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        long end = System.nanoTime();
+
+        synchronized (this) {
+            batches++;
+            if (!committed)
+                aborted++;
+            this.messages += batch.size();
+            totalCommitNanos += end - start;
+            for (Queued queued : batch) {
+                long latency = end - queued.arrived;
+                totalLatencyNanos += latency;
+                if (latency > maxLatencyNanos)
+                    maxLatencyNanos = latency;
+            }
+            if (batches % REPORT_INTERVAL == 0)
+                System.out.println(this);
+        }
+    }
+
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return the number of batches that were voted down.
+     */
+    public synchronized long getAborted() {
+        return aborted;
+    }
+
+    public synchronized long getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the average time from the arrival of a message until its batch was committed.
+     */
+    public synchronized long getAverageLatencyNanos() {
+        return messages == 0 ? 0 : totalLatencyNanos / messages;
+    }
+
+    public synchronized long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /**
+     * @return the number of messages handled per second since the start.
+     */
+    public synchronized double getThroughput() {
+        return messages / ((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("GROUP COMMITS %d: %d messages, avg batch %.1f, avg commit %.2fms, "
+                        + "latency avg %.2fms max %.2fms, %d aborted, %.0f messages/s",
+                batches, messages, batches == 0 ? 0.0 : (double) messages / batches,
+                batches == 0 ? 0.0 : totalCommitNanos / 1e6 / batches,
+                getAverageLatencyNanos() / 1e6, maxLatencyNanos / 1e6, aborted, getThroughput());
+    }
+
+    private static class Queued {
+        private final Message message;
+        private final long arrived;
+
+        private Queued(Message message, long arrived) {
+            this.message = message;
+            this.arrived = arrived;
+        }
+    }
+}
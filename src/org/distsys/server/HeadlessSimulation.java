@@ -0,0 +1,136 @@
+package org.distsys.server;
+
+import org.distsys.common.InMemoryTransport;
+import org.distsys.common.Transport;
+import org.distsys.common.concurrent.UnitThreads;
+import org.distsys.common.das.BattleField;
+import org.distsys.common.das.Core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a complete game in a single JVM without any network: a
+ * matchmaking server, a master, a number of slaves and the units
+ * of a client, all connected through an {@link InMemoryTransport}.
+ * Meant for profiling the servers with many units on one machine.
+ * <p>
+ * Everything is configured through system properties, which can
+ * also be given in a properties file passed as the only argument.
+ * Properties set on the command line take precedence over the file.
+ * <ul>
+ * <li>das.slaves: the number of slaves, at least 1 (default 2).</li>
+ * <li>das.dragons, das.minPlayers, das.maxPlayers: unit counts.</li>
+ * <li>das.mapWidth, das.mapHeight: size of the map.</li>
+ * <li>das.gameSpeed: relation between game time and real time.</li>
+ * <li>das.logDir: every server keeps its log in a directory of its own below it.</li>
+ * <li>das.threads: the kind of thread the units run in, see {@link UnitThreads}.</li>
+ * <li>das.statsInterval: if set, print every this many seconds how many units are
+ * on the battlefield, and the threads and memory of the process per unit.</li>
+ * </ul>
+ * The memory per unit is measured against the process right before
+ * the units were spawned, so it includes everything the units bring
+ * along: their threads, sockets, queues and state, on the client side
+ * and on the servers.
+ */
+public class HeadlessSimulation {
+
+    private static final String MATCHMAKING_HOST = "matchmaking";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0)
+            loadConfiguration(new File(args[0]));
+
+        // Everything below reads the configuration, so it has to be loaded first
+        Transport transport = new InMemoryTransport();
+        Transport.set(transport);
+        System.setProperty("das.matchmakingHost", MATCHMAKING_HOST);
+
+        MatchmakingServer matchmakingServer = new MatchmakingServer(MATCHMAKING_HOST);
+        transport.bind(MATCHMAKING_HOST + "/server", matchmakingServer);
+
+        int width = Integer.getInteger("das.mapWidth", BattleField.DEFAULT_MAP_WIDTH);
+        int height = Integer.getInteger("das.mapHeight", BattleField.DEFAULT_MAP_HEIGHT);
+        File logDirectory = new File(System.getProperty("das.logDir", "commitlog"));
+        int slaves = Math.max(1, Integer.getInteger("das.slaves", 2));
+
+        // The first server to register becomes the master
+        for (int i = 0; i <= slaves; i++) {
+            String host = "server-" + i;
+            BattleField battleField = new BattleField(width, height, BattleField.LOCK_TILE_SIZE);
+            GameServer server = new GameServer(host, battleField, new File(logDirectory, host));
+            transport.bind(host + "/server", server);
+            server.start(MATCHMAKING_HOST);
+        }
+
+        long statsInterval = Long.getLong("das.statsInterval", 0);
+        if (statsInterval > 0)
+            startStats(statsInterval);
+
+        Core.initializeGame(false);
+
+        BattleField.getBattleField().shutdown();
+        System.exit(0);
+    }
+
+    private static void startStats(long interval) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.gc();
+        long baseHeap = memory.getHeapMemoryUsage().getUsed();
+        long baseResident = residentBytes();
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleWithFixedDelay(() -> {
+            int units = BattleField.getBattleField().getUnits().size();
+            System.gc();
+            long heap = memory.getHeapMemoryUsage().getUsed() - baseHeap;
+            long resident = residentBytes() - baseResident;
+            System.out.printf("STATS: %d units (%s threads), %d live threads, heap +%.1fMB (%.1fKB per unit), "
+                            + "resident +%.1fMB (%.1fKB per unit)%n",
+                    units, UnitThreads.isVirtual() ? "virtual" : "platform", threads.getThreadCount(),
+                    heap / 1e6, units == 0 ? 0.0 : heap / 1e3 / units,
+                    resident / 1e6, units == 0 ? 0.0 : resident / 1e3 / units);
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the memory the process takes up, or 0 where it can not be read.
+     */
+    private static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not on Linux
+        }
+        return 0;
+    }
+
+    private static void loadConfiguration(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        for (Map.Entry<Object, Object> entry : properties.entrySet())
+            System.getProperties().putIfAbsent(entry.getKey(), entry.getValue());
+    }
+}
@@ -0,0 +1,58 @@
+package org.distsys.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets that double in width, from one
+ * microsecond up to over half an hour, so recording is a single atomic
+ * increment and percentiles are accurate to within a factor of two.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 32;
+
+    private final String name;
+    /* Bucket i counts the durations below 2^i microseconds that did not fit bucket i-1 */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    public Histogram(String name) {
+        this.name = name;
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += buckets.get(i);
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper bound of the bucket the percentile falls in, in microseconds.
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d, p50 %.2fms, p99 %.2fms, p99.9 %.2fms", name, getCount(),
+                getPercentileMicros(50) / 1e3, getPercentileMicros(99) / 1e3, getPercentileMicros(99.9) / 1e3);
+    }
+}
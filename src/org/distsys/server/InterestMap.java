@@ -0,0 +1,117 @@
+package org.distsys.server;
+
+import org.distsys.common.Transport;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the part of the battlefield every unit is
+ * interested in, so commits are only passed on to the units near
+ * the squares they change.
+ * <p>
+ * The battlefield is divided into square cells. A unit subscribes
+ * to the cells within a radius of the square it stands on, and its
+ * subscription follows it as it moves. Only cells that someone is
+ * subscribed to are kept, so a large map with few units takes up
+ * little memory. Both sizes are set by system properties:
+ * <ul>
+ * <li>das.interestCellSize: the width of a cell in squares (default 5).</li>
+ * <li>das.interestRadius: how far around itself a unit looks (default 2),
+ * at least the distance it can attack or heal over.</li>
+ * </ul>
+ */
+public class InterestMap {
+
+    private final int cellSize;
+    private final int radius;
+    private final int columns;
+    private final int rows;
+    /* The connections subscribed to a cell, by the index of the cell, for the cells that have any */
+    private final Map<Integer, Set<Transport.Connection>> cells = new ConcurrentHashMap<>();
+    /* The cells a connection is subscribed to, as first column, first row, last column, last row */
+    private final Map<Transport.Connection, int[]> subscriptions = new ConcurrentHashMap<>();
+
+    public InterestMap(int width, int height) {
+        this(width, height, Integer.getInteger("das.interestCellSize", 5), Integer.getInteger("das.interestRadius", 2));
+    }
+
+    public InterestMap(int width, int height, int cellSize, int radius) {
+        this.cellSize = cellSize;
+        this.radius = radius;
+        columns = (width + cellSize - 1) / cellSize;
+        rows = (height + cellSize - 1) / cellSize;
+    }
+
+    /**
+     * Subscribe a connection to the cells around a square, dropping
+     * the cells it was subscribed to before and no longer needs.
+     */
+    public synchronized void subscribe(Transport.Connection connection, int x, int y) {
+        int[] region = {
+                column(x - radius), row(y - radius),
+                column(x + radius), row(y + radius)
+        };
+        int[] old = subscriptions.put(connection, region);
+        if (old != null) {
+            if (old[0] == region[0] && old[1] == region[1] && old[2] == region[2] && old[3] == region[3])
+                return;
+            for (int column = old[0]; column <= old[2]; column++)
+                for (int row = old[1]; row <= old[3]; row++)
+                    if (!contains(region, column, row))
+                        remove(row * columns + column, connection);
+        }
+        for (int column = region[0]; column <= region[2]; column++)
+            for (int row = region[1]; row <= region[3]; row++)
+                cells.computeIfAbsent(row * columns + column, cell -> ConcurrentHashMap.newKeySet()).add(connection);
+    }
+
+    public synchronized void unsubscribe(Transport.Connection connection) {
+        int[] region = subscriptions.remove(connection);
+        if (region == null)
+            return;
+        for (int column = region[0]; column <= region[2]; column++)
+            for (int row = region[1]; row <= region[3]; row++)
+                remove(row * columns + column, connection);
+    }
+
+    /**
+     * Take a connection out of a cell, and drop the cell once it is empty.
+     */
+    private void remove(int cell, Transport.Connection connection) {
+        cells.computeIfPresent(cell, (index, subscribed) -> {
+            subscribed.remove(connection);
+            return subscribed.isEmpty() ? null : subscribed;
+        });
+    }
+
+    /**
+     * Add the connections interested in a square to a collection.
+     */
+    public void collect(int x, int y, Collection<Transport.Connection> into) {
+        Set<Transport.Connection> subscribed = cells.get(row(y) * columns + column(x));
+        if (subscribed != null)
+            into.addAll(subscribed);
+    }
+
+    /**
+     * @return the number of connections that are subscribed.
+     */
+    public int size() {
+        return subscriptions.size();
+    }
+
+    private int column(int x) {
+        return Math.max(0, Math.min(columns - 1, Math.floorDiv(x, cellSize)));
+    }
+
+    private int row(int y) {
+        return Math.max(0, Math.min(rows - 1, Math.floorDiv(y, cellSize)));
+    }
+
+    private static boolean contains(int[] region, int column, int row) {
+        return column >= region[0] && column <= region[2] && row >= region[1] && row <= region[3];
+    }
+}
@@ -0,0 +1,447 @@
+package org.distsys.server;
+
+import org.distsys.common.IGameServer;
+import org.distsys.common.Transport;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Elects the master among the game servers themselves, in the way
+ * of Raft, so the game goes on when the master fails without the
+ * matchmaking server having to notice it first.
+ * <p>
+ * Time is divided into terms, every term has at most one master.
+ * The master keeps sending heartbeats to the other servers. A slave
+ * that has not heard of the master for an election timeout becomes
+ * a candidate: it starts a new term, votes for itself and asks the
+ * other servers for their votes. A server votes for at most one
+ * candidate per term, and only for one whose battlefield is at
+ * least as far as its own: the last commit of the candidate is of a
+ * later term, or of the same term and at least the same version.
+ * A version alone does not do, a deposed master may have gone on
+ * committing on its own. With commits on a majority, see
+ * das.quorum in {@link Coordinator}, the new master therefore has
+ * every commit that was acknowledged. A candidate that gets the
+ * votes of a majority becomes the master, one that hears of a newer
+ * term goes back to being a slave. Timeouts are randomized, so one
+ * candidate usually wins before the others start.
+ * <p>
+ * The deltas the master commits are the log that is replicated.
+ * Slaves refuse deltas of an older term, and a new master first
+ * brings all slaves to its own state, so whatever a deposed master
+ * got applied on its own is overwritten.
+ * <p>
+ * A master that has not heard back from a majority of the servers
+ * for an election timeout steps down, since the others may have
+ * elected a new master by then. This way a master cut off from the
+ * rest of the game does not go on as a second master.
+ * <ul>
+ * <li>das.heartbeatInterval: time between heartbeats in milliseconds (default 50).</li>
+ * <li>das.electionTimeout: the least time without heartbeats after which a slave
+ * starts an election, in milliseconds (default 150). The actual timeout lies
+ * between this and twice this.</li>
+ * </ul>
+ * The current term and the vote cast in it are kept in a file, so a
+ * server that restarts does not vote twice in the same term.
+ */
+public class LeaderElection {
+
+    private enum Role {
+        FOLLOWER, CANDIDATE, LEADER
+    }
+
+    private final GameServer server;
+    private final String self;
+    private final Executor executor;
+    private final File stateFile;
+    private final long heartbeatInterval;
+    private final long electionTimeout;
+    private final ScheduledThreadPoolExecutor timer;
+
+    /* All servers of the game, including this one */
+    private final Set<String> servers = ConcurrentHashMap.newKeySet();
+    private final Map<String, IGameServer> stubs = new ConcurrentHashMap<>();
+    /* Servers a heartbeat is still on its way to, so a slow one does not get a pile of them */
+    private final Set<String> sending = ConcurrentHashMap.newKeySet();
+    /* When each server last answered a heartbeat of this master */
+    private final Map<String, Long> lastAck = new ConcurrentHashMap<>();
+
+    private Role role = Role.FOLLOWER;
+    private long term;
+    private String votedFor;
+    private String leader;
+    private int votes;
+    /* When the master was last heard of, and when this server starts an election */
+    private long lastContact;
+    private long electionDeadline;
+    /* When this server became the master */
+    private long leaderSince;
+
+    private final Histogram failovers = new Histogram("failover");
+
+    /**
+     * @param server    the server taking part.
+     * @param self      the name of the server.
+     * @param directory where the term and vote are kept.
+     * @param executor  runs the requests to the other servers.
+     */
+    public LeaderElection(GameServer server, String self, File directory, Executor executor) {
+        this.server = server;
+        this.self = self;
+        this.executor = executor;
+        this.stateFile = new File(directory, "election.dat");
+        this.heartbeatInterval = Long.getLong("das.heartbeatInterval", 50);
+        this.electionTimeout = Long.getLong("das.electionTimeout", 150);
+        servers.add(self);
+        readState();
+
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "election");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start taking part in elections.
+     *
+     * @param master the current master, or null if this server is the
+     *               first of the game and becomes the master right away.
+     */
+    public void start(String master) {
+        synchronized (this) {
+            if (master == null) {
+                startElection();
+            } else {
+                servers.add(master);
+                leader = master;
+                // Give the master time to learn about this server before it is missed
+                resetElectionDeadline(1000);
+            }
+        }
+        timer.scheduleWithFixedDelay(this::tick, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Add a server to the game. The master passes the servers on
+     * to the slaves with its heartbeats.
+     */
+    public void addServer(String host) {
+        servers.add(host);
+    }
+
+    private void tick() {
+        Role current;
+        synchronized (this) {
+            current = role;
+            if (current != Role.LEADER && System.nanoTime() > electionDeadline) {
+                startElection();
+                return;
+            }
+            if (current == Role.LEADER && !hasMajority()) {
+                System.out.println(self + " LOST THE MAJORITY IN TERM " + term);
+                follow(term, null);
+                resetElectionDeadline(0);
+                return;
+            }
+        }
+        if (current == Role.LEADER)
+            sendHeartbeats();
+    }
+
+    /**
+     * @return whether a majority of the servers, this one included, answered
+     * a heartbeat within the last election timeout. A master that was just
+     * elected is given an election timeout to hear from the others.
+     */
+    private boolean hasMajority() {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(electionTimeout);
+        if (now - leaderSince < timeout)
+            return true;
+        int answered = 1;
+        for (long ack : lastAck.values()) {
+            if (now - ack < timeout)
+                answered++;
+        }
+        return answered >= majority();
+    }
+
+    /* Elections and votes */
+
+    private synchronized void startElection() {
+        role = Role.CANDIDATE;
+        term++;
+        votedFor = self;
+        votes = 1;
+        leader = null;
+        writeState();
+        resetElectionDeadline(0);
+        System.out.println(self + " STARTS ELECTION FOR TERM " + term);
+        if (votes >= majority()) {
+            becomeLeader();
+            return;
+        }
+
+        long electionTerm = term;
+        long lastTerm = server.getLastTerm();
+        long version = server.getBattleField().getVersion();
+        for (String host : servers) {
+            if (host.equals(self))
+                continue;
+            executor.execute(() -> {
+                try {
+                    if (stub(host).requestLeaderVote(electionTerm, self, lastTerm, version))
+                        voteReceived(electionTerm);
+                } catch (Exception e) {
+                    stubs.remove(host);
+                }
+            });
+        }
+    }
+
+    private synchronized void voteReceived(long electionTerm) {
+        if (role != Role.CANDIDATE || term != electionTerm)
+            return;
+        if (++votes >= majority())
+            becomeLeader();
+    }
+
+    /**
+     * Handle a candidate asking for the vote of this server.
+     *
+     * @return whether the vote was granted.
+     */
+    public synchronized boolean requestVote(long candidateTerm, String candidate, long candidateLastTerm, long candidateVersion) {
+        if (candidateTerm < term)
+            return false;
+        if (candidateTerm > term)
+            follow(candidateTerm, null);
+
+        // Only vote for a candidate that has every commit this server has
+        long lastTerm = server.getLastTerm();
+        boolean upToDate = candidateLastTerm > lastTerm
+                || (candidateLastTerm == lastTerm && candidateVersion >= server.getBattleField().getVersion());
+        if (!upToDate || (votedFor != null && !votedFor.equals(candidate)))
+            return false;
+
+        votedFor = candidate;
+        writeState();
+        resetElectionDeadline(0);
+        return true;
+    }
+
+    private void becomeLeader() {
+        role = Role.LEADER;
+        leader = self;
+        leaderSince = System.nanoTime();
+        lastAck.clear();
+        long leaderless = System.nanoTime() - lastContact;
+        if (lastContact != 0)
+            failovers.record(leaderless);
+        System.out.println(self + " IS MASTER FOR TERM " + term
+                + (lastContact == 0 ? "" : String.format(", %.1fms after the last master was heard of", leaderless / 1e6)));
+
+        long electedTerm = term;
+        String[] others = servers.stream().filter(host -> !host.equals(self)).toArray(String[]::new);
+        executor.execute(() -> {
+            server.becomeMaster(electedTerm, others);
+            sendHeartbeats();
+        });
+    }
+
+    /* Heartbeats */
+
+    private void sendHeartbeats() {
+        long currentTerm;
+        synchronized (this) {
+            if (role != Role.LEADER)
+                return;
+            currentTerm = term;
+        }
+        String[] all = servers.toArray(new String[0]);
+        for (String host : all) {
+            if (host.equals(self) || !sending.add(host))
+                continue;
+            executor.execute(() -> {
+                try {
+                    IGameServer follower = stub(host);
+                    long reply = follower.heartbeat(currentTerm, self, all);
+                    if (reply > currentTerm) {
+                        synchronized (this) {
+                            if (reply > term)
+                                follow(reply, null);
+                        }
+                    } else {
+                        lastAck.put(host, System.nanoTime());
+                        server.slaveUp(host, follower);
+                    }
+                } catch (Exception e) {
+                    stubs.remove(host);
+                    server.slaveDown(host);
+                } finally {
+                    sending.remove(host);
+                }
+            });
+        }
+    }
+
+    /**
+     * Handle a heartbeat of the master.
+     *
+     * @param servers all servers of the game, as the master knows them.
+     * @return the term of this server, so a deposed master finds out.
+     */
+    public synchronized long heartbeat(long leaderTerm, String master, String[] servers) {
+        if (leaderTerm < term)
+            return term;
+        if (leaderTerm > term || role != Role.FOLLOWER || !master.equals(leader))
+            follow(leaderTerm, master);
+        for (String host : servers)
+            this.servers.add(host);
+        lastContact = System.nanoTime();
+        resetElectionDeadline(0);
+        return term;
+    }
+
+    /**
+     * @return whether this server is the master of a term.
+     */
+    public synchronized boolean isLeader(long leaderTerm) {
+        return role == Role.LEADER && term == leaderTerm;
+    }
+
+    /**
+     * Stop being the master of a term, when taking over failed. The
+     * server is told to step down, and another election follows.
+     *
+     * @return whether this server was the master of the term.
+     */
+    public synchronized boolean resign(long leaderTerm) {
+        if (!isLeader(leaderTerm))
+            return false;
+        follow(term, null);
+        resetElectionDeadline(0);
+        return true;
+    }
+
+    /**
+     * @return whether a master of a term is still in charge, so its deltas can be applied.
+     */
+    public synchronized boolean isCurrent(long leaderTerm) {
+        return leaderTerm >= term;
+    }
+
+    private void follow(long newTerm, String master) {
+        boolean wasLeader = role == Role.LEADER;
+        if (newTerm > term) {
+            term = newTerm;
+            votedFor = null;
+            writeState();
+        }
+        role = Role.FOLLOWER;
+        leader = master;
+        if (master != null)
+            System.out.println(self + " FOLLOWS " + master + " IN TERM " + term);
+        if (wasLeader)
+            executor.execute(server::stepDown);
+    }
+
+    private void resetElectionDeadline(long extra) {
+        long timeout = electionTimeout + ThreadLocalRandom.current().nextLong(electionTimeout);
+        electionDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout + extra);
+        if (lastContact == 0 && role == Role.FOLLOWER)
+            lastContact = System.nanoTime();
+    }
+
+    private int majority() {
+        return servers.size() / 2 + 1;
+    }
+
+    private IGameServer stub(String host) throws Exception {
+        IGameServer stub = stubs.get(host);
+        if (stub == null) {
+            stub = (IGameServer) Transport.get().lookup(host);
+            stubs.put(host, stub);
+        }
+        return stub;
+    }
+
+    /**
+     * @return the number of servers in the game, including this one and
+     * the ones that are down. A server is never left out once it joined.
+     */
+    public int getServerCount() {
+        return servers.size();
+    }
+
+    public synchronized long getTerm() {
+        return term;
+    }
+
+    /**
+     * @return the master of the current term, or null while there is an election.
+     */
+    public synchronized String getLeader() {
+        return leader;
+    }
+
+    /**
+     * @return how long the game went without a master, for every election this server won.
+     */
+    public Histogram getFailovers() {
+        return failovers;
+    }
+
+    /* The term and vote survive restarts */
+
+    private void readState() {
+        if (!stateFile.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(stateFile))) {
+            term = in.readLong();
+            String vote = in.readUTF();
+            votedFor = vote.isEmpty() ? null : vote;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeState() {
+        File temporary = new File(stateFile.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(file)) {
+            out.writeLong(term);
+            out.writeUTF(votedFor == null ? "" : votedFor);
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(temporary.toPath(), stateFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
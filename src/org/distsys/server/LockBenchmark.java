@@ -0,0 +1,129 @@
+package org.distsys.server;
+
+import org.distsys.common.das.BattleField;
+import org.distsys.common.das.units.Unit.UnitType;
+import org.distsys.common.das.units.UnitState;
+import org.distsys.common.messages.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how fast a number of threads change the same battlefield
+ * at a number of lock tile sizes, see das.lockTileSize. A tile size
+ * of 0 keeps a single region, which behaves like one monitor for the
+ * whole map, so it is the baseline the other tile sizes compare to.
+ * <p>
+ * Every thread owns the units in a band of rows of its own, and keeps
+ * moving them one square left or right, damaging and healing them.
+ * The threads never touch the same squares, so any time they wait for
+ * each other is spent on the locks. For every tile size the number of
+ * messages processed per second is printed, together with the
+ * latency of a single message. None of the moves should be rejected.
+ * <ul>
+ * <li>das.benchmark.threads: the number of threads (default the number of processors, at least 2).</li>
+ * <li>das.benchmark.seconds: how long every tile size runs (default 5).</li>
+ * <li>das.benchmark.tileSizes: the tile sizes to compare, separated by commas (default 0,5).</li>
+ * <li>das.mapWidth, das.mapHeight: size of the map (default 100 by 100).</li>
+ * </ul>
+ */
+public class LockBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = Integer.getInteger("das.benchmark.threads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+        long seconds = Long.getLong("das.benchmark.seconds", 5);
+        int width = Integer.getInteger("das.mapWidth", 100);
+        int height = Integer.getInteger("das.mapHeight", 100);
+
+        for (String tileSize : System.getProperty("das.benchmark.tileSizes", "0,5").split(",")) {
+            int size = Integer.parseInt(tileSize.trim());
+            // Run once to warm up, and once to measure
+            run(new BattleField(width, height, size), threads, 1, new Histogram("warmup"));
+            Histogram latency = new Histogram("message");
+            BattleField battleField = new BattleField(width, height, size);
+            long messages = run(battleField, threads, seconds, latency);
+            System.out.printf("tile size %d, %d threads: %.0f messages/s, %s, %d rejected moves%n", size, threads,
+                    messages / (double) seconds, latency, battleField.getRejectedMoves());
+        }
+    }
+
+    /**
+     * @return the number of messages processed by all threads.
+     */
+    private static long run(BattleField battleField, int threads, long seconds, Histogram latency)
+            throws InterruptedException {
+        int rows = battleField.getHeight() / threads;
+        AtomicLong messages = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        for (int t = 0; t < threads; t++) {
+            Band band = new Band(battleField, t * rows, rows);
+            Thread thread = new Thread(() -> {
+                messages.addAndGet(band.run(end, latency));
+                done.countDown();
+            }, "benchmark-" + t);
+            thread.start();
+        }
+        done.await();
+        battleField.shutdown();
+        return messages.get();
+    }
+
+    /**
+     * The units of one thread, on every other square of its rows, so
+     * each of them has room to move.
+     */
+    private static class Band {
+        private final BattleField battleField;
+        private final List<int[]> units = new ArrayList<>();
+        private int counter;
+
+        private Band(BattleField battleField, int firstRow, int rows) {
+            this.battleField = battleField;
+            for (int y = firstRow; y < firstRow + rows; y++) {
+                for (int x = 0; x + 1 < battleField.getWidth(); x += 2) {
+                    int unitID = battleField.getNewUnitID();
+                    UnitState unit = new UnitState(unitID, UnitType.player, x, y, 1000, 1000, 1);
+                    battleField.processMessage(Message.spawnUnit(Message.newId(unitID, counter++), unit, x, y));
+                    units.add(new int[]{unitID, x, y});
+                }
+            }
+        }
+
+        /**
+         * @return the number of messages processed.
+         */
+        private long run(long end, Histogram latency) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long messages = 0;
+            while (System.nanoTime() < end) {
+                int[] unit = units.get(random.nextInt(units.size()));
+                Message message;
+                switch (random.nextInt(3)) {
+                    case 0:
+                        // Every unit has a square of its own to its right, it moves back and forth
+                        int x = unit[1] % 2 == 0 ? unit[1] + 1 : unit[1] - 1;
+                        message = Message.moveUnit(Message.newId(unit[0], counter++), x, unit[2]);
+                        unit[1] = x;
+                        break;
+                    case 1:
+                        message = Message.dealDamage(Message.newId(unit[0], counter++), unit[1], unit[2], 1);
+                        break;
+                    default:
+                        message = Message.healDamage(Message.newId(unit[0], counter++), unit[1], unit[2], 1);
+                        break;
+                }
+                long start = System.nanoTime();
+                battleField.processMessage(message);
+                latency.record(System.nanoTime() - start);
+                messages++;
+            }
+            return messages;
+        }
+    }
+}
@@ -3,21 +3,18 @@ package org.distsys.server;
 import org.distsys.common.EC2Server;
 import org.distsys.common.IGameServer;
 import org.distsys.common.IMatchmakingServer;
+import org.distsys.common.MessageSocket;
+import org.distsys.common.Transport;
 
 import java.io.*;
 import java.net.MalformedURLException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
 
 public class MatchmakingServer extends EC2Server implements IMatchmakingServer {
 
@@ -25,6 +22,8 @@ public class MatchmakingServer extends EC2Server implements IMatchmakingServer {
     private final static Object lock = new Object();
 
     private volatile String master;
+    /* The term the master was elected in */
+    private long term;
 
     private MatchmakingServer() throws Exception {
         super();
@@ -32,6 +31,18 @@ public class MatchmakingServer extends EC2Server implements IMatchmakingServer {
         listenForClients();
     }
 
+    /**
+     * Create a matchmaking server for a headless simulation,
+     * reached through an {@link org.distsys.common.InMemoryTransport}.
+     *
+     * @param host the name of the server.
+     */
+    public MatchmakingServer(String host) throws Exception {
+        super(host);
+        servers = new ConcurrentHashMap<>();
+        listenForClients();
+    }
+
     @Override
     public String register(final String host) throws RemoteException {
         if (master == null) {
@@ -41,7 +52,7 @@ public class MatchmakingServer extends EC2Server implements IMatchmakingServer {
         if (!servers.containsKey(host)) {
             final IGameServer server;
             try {
-                server = (IGameServer) Naming.lookup("rmi://" + host);
+                server = (IGameServer) Transport.get().lookup(host);
             } catch (NotBoundException | MalformedURLException e) {
                 throw new RemoteException("Could not connect to " + host);
             }
@@ -55,6 +66,18 @@ public class MatchmakingServer extends EC2Server implements IMatchmakingServer {
         return master;
     }
 
+    @Override
+    public void leaderElected(String host, long term) throws RemoteException {
+        synchronized (lock) {
+            // Reports of older elections can arrive late
+            if (term < this.term)
+                return;
+            this.term = term;
+            master = host;
+        }
+        System.out.println(host + " is master for term " + term);
+    }
+
     @Override
     public Map<String, String> getServers() throws RemoteException {
         Map<String, String> map = new HashMap<>();
@@ -76,23 +99,18 @@ public class MatchmakingServer extends EC2Server implements IMatchmakingServer {
 
     private void listenForClients() {
         pool.execute(() -> {
-            ServerSocket serverSocket = null;
+            Transport.Listener serverSocket = null;
             try {
-                serverSocket = new ServerSocket(44444);
+                serverSocket = Transport.get().listen(getHost(), 44444);
             } catch (IOException e) {
                 e.printStackTrace();
                 return;
             }
-            Socket socket;
-            OutputStream out;
-            ObjectOutputStream writer;
+            MessageSocket socket;
             while (true) {
                 try {
                     socket = serverSocket.accept();
-                    out = socket.getOutputStream();
-                    writer = new ObjectOutputStream(out);
-                    writer.writeObject(getServers());
-                    writer.flush();
+                    socket.writeObject(getServers());
                 } catch (IOException e) {
                     e.printStackTrace();
                     break;
@@ -113,63 +131,16 @@ public class MatchmakingServer extends EC2Server implements IMatchmakingServer {
             this.monitor = monitor;
         }
 
+        /**
+         * Forget a server that is down. When it was the master, the
+         * other servers elect a new one themselves and report it, see
+         * {@link #leaderElected(String, long)}.
+         */
         @Override
         public void processAction(String hostDown) {
             servers.remove(hostDown);
-
-            if (servers.isEmpty()) return;
-            if (!master.equals(hostDown)) return;
-
-            int min = Integer.MAX_VALUE;
-            String newMasterHost = null;
-            IGameServer newMasterServer = null;
-            for (String s : servers.keySet()) {
-                int current;
-                IGameServer currentServer = servers.get(s);
-                try {
-                    current = currentServer.numberOfClients();
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                    continue;
-                }
-                if (current < min) {
-                    min = current;
-                    newMasterHost = s;
-                    newMasterServer = currentServer;
-                    continue;
-                }
-                newMasterHost = s;
-                newMasterServer = currentServer;
-            }
-
-            if (newMasterHost == null) return;
-
-            reconfigureMaster(newMasterHost, newMasterServer);
-
             monitor.removeListener(this);
         }
-
-        private void reconfigureMaster(String newMasterHost, IGameServer newMasterServer) {
-            try {
-                HashSet<String> slaves = new HashSet<>();
-                slaves.addAll(
-                        servers
-                                .keySet()
-                                .stream()
-                                .filter(s -> !s.equals(newMasterHost))
-                                .collect(Collectors.toList())
-                );
-
-                master = newMasterHost;
-                newMasterServer.setAsMaster(true);
-
-                for (String s : slaves) {
-                    newMasterServer.registerSlave(s);
-                }
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
     }
 
     public static void main(String[] args) throws Exception {
@@ -0,0 +1,93 @@
+package org.distsys.server;
+
+import org.distsys.common.das.BattleField;
+import org.distsys.common.das.StateDelta;
+import org.distsys.common.das.units.Unit.UnitType;
+import org.distsys.common.das.units.UnitState;
+import org.distsys.common.messages.Message;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks that a slave keeps the deltas of the master in order when
+ * two of them come in at the same time, as they do when the master
+ * went on without waiting for the slave, see {@link Coordinator}.
+ * <p>
+ * A master battlefield produces a number of deltas, which are sent
+ * to a slave two at a time from two threads: every delta together
+ * with the one after it. The slave applies whichever it can, the one
+ * that was too early is sent again. Afterwards the commit log of the
+ * slave is replayed on an empty battlefield, which has to end up at
+ * the version of the master. A log in which a delta got ahead of the
+ * one before it stops replaying at the gap.
+ * <ul>
+ * <li>das.check.deltas: the number of deltas (default 2000).</li>
+ * </ul>
+ * Exits with status 1 if the check fails.
+ */
+public class SlaveCommitCheck {
+
+    public static void main(String[] args) throws Exception {
+        int count = Integer.getInteger("das.check.deltas", 2000);
+        File directory = Files.createTempDirectory("das-slave-check").toFile();
+
+        BattleField master = new BattleField(100, 100, 0);
+        master.setTrackChanges(true);
+        List<StateDelta> deltas = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int unitID = master.getNewUnitID();
+            int x = i % master.getWidth();
+            int y = i / master.getWidth();
+            UnitState unit = new UnitState(unitID, UnitType.player, x, y, 10, 10, 1);
+            List<Message> messages = Collections.singletonList(Message.spawnUnit(Message.newId(unitID, 0), unit, x, y));
+            master.processMessage(messages.get(0));
+            deltas.add(master.takeDelta(messages));
+        }
+
+        GameServer slave = new GameServer("slave", new BattleField(100, 100, 0), directory);
+        for (int i = 0; i + 1 < count; i++) {
+            StateDelta first = deltas.get(i);
+            StateDelta second = deltas.get(i + 1);
+            CountDownLatch start = new CountDownLatch(1);
+            Thread other = new Thread(() -> {
+                await(start);
+                commit(slave, second);
+            });
+            other.start();
+            start.countDown();
+            commit(slave, first);
+            other.join();
+            if (slave.getBattleField().getVersion() < second.getVersion())
+                commit(slave, second);
+        }
+
+        BattleField replayed = new BattleField(100, 100, 0);
+        new CommitLog(directory, 64 * 1024 * 1024, 1000).replay(replayed, 0);
+        long expected = master.getVersion();
+        boolean passed = slave.getBattleField().getVersion() == expected && replayed.getVersion() == expected;
+        System.out.printf("%s: %d deltas, slave at version %d, log replays to version %d, master at version %d%n",
+                passed ? "PASSED" : "FAILED", count, slave.getBattleField().getVersion(), replayed.getVersion(), expected);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static void commit(GameServer slave, StateDelta delta) {
+        try {
+            slave.commit(delta);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.distsys.server;
+
+import org.distsys.common.messages.Message;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs the game at a fixed rate on the master. Messages sent by the
+ * units in between two ticks are collected, put in a deterministic
+ * order and handed over as one batch, so the battlefield is changed
+ * and replicated once per tick instead of once per message.
+ * <p>
+ * Within a tick, messages are ordered by unit id, and the messages of
+ * a unit by the order it sent them in, whatever their kind, so a unit
+ * that pipelines a move and an attack has them applied in that order.
+ * Reads do not go through the tick, every server answers them from
+ * its own battlefield, see {@link GameServer#read}. Moves that
+ * conflict are settled the same way on every run: when two units
+ * move onto the same square, the one with the lowest id gets there
+ * and the other finds the square taken.
+ * <p>
+ * The duration of every tick is recorded. A tick that takes longer
+ * than the tick period is counted as an overrun, which tells at what
+ * number of units the server can no longer keep up.
+ */
+public class TickEngine {
+
+    /* Print the statistics every this many ticks */
+    private static final int REPORT_INTERVAL = 100;
+
+    private final long periodNanos;
+    private final Consumer<List<Message>> handler;
+    private final Queue<Message> intents = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService scheduler;
+
+    private long ticks;
+    private long overruns;
+    private volatile long lastTickNanos;
+    private volatile long maxTickNanos;
+    private long totalTickNanos;
+    private volatile int lastBatchSize;
+
+    /**
+     * @param ticksPerSecond the tick rate.
+     * @param handler        applies and replicates the batch of a tick.
+     */
+    public TickEngine(int ticksPerSecond, Consumer<List<Message>> handler) {
+        this.periodNanos = TimeUnit.SECONDS.toNanos(1) / ticksPerSecond;
+        this.handler = handler;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tick-engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleAtFixedRate(this::tick, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Queue a message for the next tick.
+     */
+    public void submit(Message message) {
+        intents.add(message);
+    }
+
+    private void tick() {
+        List<Message> batch = new ArrayList<>();
+        for (Message message; (message = intents.poll()) != null; )
+            batch.add(message);
+        if (batch.isEmpty())
+            return;
+
+        long start = System.nanoTime();
+        try {
+            batch.sort(ORDER);
+            handler.accept(batch);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        record(System.nanoTime() - start, batch.size());
+    }
+
+    private synchronized void record(long duration, int batchSize) {
+        ticks++;
+        totalTickNanos += duration;
+        lastTickNanos = duration;
+        lastBatchSize = batchSize;
+        if (duration > maxTickNanos)
+            maxTickNanos = duration;
+        if (duration > periodNanos) {
+            overruns++;
+            System.out.println("TICK OVERRUN: " + batchSize + " messages took "
+                    + TimeUnit.NANOSECONDS.toMillis(duration) + "ms");
+        }
+        if (ticks % REPORT_INTERVAL == 0)
+            System.out.println(this);
+    }
+
+    public synchronized long getTicks() {
+        return ticks;
+    }
+
+    public synchronized long getOverruns() {
+        return overruns;
+    }
+
+    public long getLastTickNanos() {
+        return lastTickNanos;
+    }
+
+    public long getMaxTickNanos() {
+        return maxTickNanos;
+    }
+
+    public synchronized long getAverageTickNanos() {
+        return ticks == 0 ? 0 : totalTickNanos / ticks;
+    }
+
+    /**
+     * @return the number of messages handled in the last tick.
+     */
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TICKS %d: last %d messages in %.2fms, avg %.2fms, max %.2fms, %d overruns of %.2fms",
+                ticks, lastBatchSize, lastTickNanos / 1e6, getAverageTickNanos() / 1e6,
+                maxTickNanos / 1e6, overruns, periodNanos / 1e6);
+    }
+
+    /* Message ids start with the unit id, followed by the counter of the unit */
+    private static final Comparator<Message> ORDER = Comparator.comparingLong(Message::getId);
+
+}